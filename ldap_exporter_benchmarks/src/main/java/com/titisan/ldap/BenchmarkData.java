@@ -0,0 +1,115 @@
+package com.titisan.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Synthetic configurations and monitor entries shared by the benchmarks.
+ */
+final class BenchmarkData {
+    private static final int GROUPS = 32;
+    private static final String[] ATTRS = {"monitorCounter", "monitorOpInitiated", "monitorOpCompleted"};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * A config with ruleCount rules, each setting labelCount labels.
+     *
+     * All but the last rule match the entries of one group, the last one
+     * catches everything else, like most real configs do.
+     */
+    static String config(int ruleCount, int labelCount, int seriesCacheSize) {
+        StringBuilder yaml = new StringBuilder("---\nseriesCacheSize: " + seriesCacheSize + "\nrules:\n");
+        for (int r = 0; r < ruleCount - 1; r++) {
+            yaml.append("- pattern: 'cn=Item (\\d+),cn=Group ").append(r).append("_(\\w+)'\n")
+                .append("  name: ldap_group").append(r).append("_$2\n")
+                .append("  type: COUNTER\n");
+            appendLabels(yaml, labelCount);
+        }
+        yaml.append("- pattern: 'cn=Item (\\d+),cn=(.+)_(\\w+)'\n")
+            .append("  name: ldap_$2_$3\n");
+        appendLabels(yaml, labelCount);
+        return yaml.toString();
+    }
+
+    private static void appendLabels(StringBuilder yaml, int labelCount) {
+        if (labelCount == 0) {
+            return;
+        }
+        yaml.append("  labels:\n    item: $1\n");
+        for (int l = 1; l < labelCount; l++) {
+            yaml.append("    label").append(l).append(": value").append(l).append("\n");
+        }
+    }
+
+    /**
+     * Entry names as the receiver gets them: relative DN and attribute name.
+     */
+    static String[] entryNames(int entryCount) {
+        String[] names = new String[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            names[i] = "cn=Item " + i + ",cn=Group " + (i % GROUPS) + "_" + ATTRS[i % ATTRS.length];
+        }
+        return names;
+    }
+
+    /**
+     * Search results shaped like cn=Monitor: counters with one attribute,
+     * operations with initiated and completed counts, and text-only entries.
+     */
+    static List<SearchResult> searchResults(int entryCount) {
+        List<SearchResult> results = new ArrayList<SearchResult>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            BasicAttributes attrs = new BasicAttributes(true);
+            switch (i % 4) {
+                case 0:
+                case 1:
+                    attrs.put("monitorCounter", String.valueOf(i * 7L));
+                    break;
+                case 2:
+                    attrs.put("monitorOpInitiated", String.valueOf(i * 11L));
+                    attrs.put("monitorOpCompleted", String.valueOf(i * 11L - 1));
+                    break;
+                default:
+                    attrs.put("monitoredInfo", "OpenLDAP: slapd 2.4.44");
+                    break;
+            }
+            results.add(new SearchResult("cn=Item " + i + ",cn=Group " + (i % GROUPS), null, attrs));
+        }
+        return results;
+    }
+
+    static <T> NamingEnumeration<T> enumeration(final List<T> items) {
+        return new NamingEnumeration<T>() {
+            private int next = 0;
+
+            public boolean hasMore() {
+                return next < items.size();
+            }
+
+            public T next() {
+                return nextElement();
+            }
+
+            public boolean hasMoreElements() {
+                return hasMore();
+            }
+
+            public T nextElement() {
+                if (next >= items.size()) {
+                    throw new NoSuchElementException();
+                }
+                return items.get(next++);
+            }
+
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+package com.titisan.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * Writing the samples of a scrape in the text format, through MetricFamilySamples
+ * and TextFormat.write004 as collect() does, against SampleFamilies.write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpositionBenchmark {
+
+    @Param({"10000", "100000"})
+    public int entryCount;
+
+    @Param({"0", "4"})
+    public int labelCount;
+
+    private SampleFamilies families;
+    private final ByteArrayOutputStream response = new ByteArrayOutputStream(1 << 20);
+
+    @Setup
+    public void setUp() throws Exception {
+        LdapCollector collector = new LdapCollector(BenchmarkData.config(40, labelCount, 10000));
+        LdapCollector.Receiver receiver = collector.newReceiver();
+        LdapScraper scraper = new LdapScraper((LdapConnectionPool) null, "cn=Monitor",
+            Collections.<String>emptyList(), Collections.<String>emptyList(), Collections.<String>emptyList(), receiver);
+        scraper.scrapeBackMonitorData(BenchmarkData.enumeration(BenchmarkData.searchResults(entryCount)), null);
+        families = receiver.families;
+    }
+
+    @Benchmark
+    public int textFormat() throws IOException {
+        response.reset();
+        OutputStreamWriter osw = new OutputStreamWriter(response);
+        TextFormat.write004(osw, Collections.enumeration(families.toMetricFamilySamples()));
+        osw.flush();
+        return response.size();
+    }
+
+    @Benchmark
+    public int sampleFamilies() throws IOException {
+        response.reset();
+        OutputStreamWriter osw = new OutputStreamWriter(response);
+        families.write(osw);
+        osw.flush();
+        return response.size();
+    }
+}
@@ -0,0 +1,67 @@
+package com.titisan.ldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedCompareRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedExtendedRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSASLBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+
+/**
+ * Counts the operations an in-memory directory server sees.
+ */
+class LdapOperationCounter extends InMemoryOperationInterceptor {
+    final AtomicLong binds = new AtomicLong();
+    final AtomicLong searches = new AtomicLong();
+    final AtomicLong searchEntries = new AtomicLong();
+    final AtomicLong others = new AtomicLong();
+
+    @Override
+    public void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) {
+        binds.incrementAndGet();
+    }
+
+    @Override
+    public void processSASLBindRequest(InMemoryInterceptedSASLBindRequest request) {
+        binds.incrementAndGet();
+    }
+
+    @Override
+    public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+        searches.incrementAndGet();
+    }
+
+    @Override
+    public void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+        searchEntries.incrementAndGet();
+    }
+
+    @Override
+    public void processCompareRequest(InMemoryInterceptedCompareRequest request) {
+        others.incrementAndGet();
+    }
+
+    @Override
+    public void processExtendedRequest(InMemoryInterceptedExtendedRequest request) {
+        others.incrementAndGet();
+    }
+
+    long operations() {
+        return binds.get() + searches.get() + others.get();
+    }
+
+    void reset() {
+        binds.set(0);
+        searches.set(0);
+        searchEntries.set(0);
+        others.set(0);
+    }
+
+    public String toString() {
+        return "binds=" + binds.get() + " searches=" + searches.get()
+            + " searchEntries=" + searchEntries.get() + " other=" + others.get();
+    }
+}
@@ -0,0 +1,45 @@
+package com.titisan.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and compiling a YAML configuration, as done on every reload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadConfigBenchmark {
+
+    @Param({"10", "40", "160"})
+    public int ruleCount;
+
+    @Param({"0", "8"})
+    public int labelCount;
+
+    private String yaml;
+
+    @Setup
+    public void setUp() {
+        yaml = BenchmarkData.config(ruleCount, labelCount, 10000);
+    }
+
+    @Benchmark
+    public LdapCollector loadConfig() throws Exception {
+        return new LdapCollector(yaml);
+    }
+}
@@ -0,0 +1,178 @@
+package com.titisan.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * Generates OpenLDAP-shaped cn=Monitor trees of any size.
+ *
+ * The fixed part of the tree (cn=Connections, cn=Operations, cn=Statistics and
+ * their usual children) is always there. The rest of the entries are split
+ * between cn=Connection N entries, which carry no requested attribute just like
+ * on a busy OpenLDAP server, monitorCounter entries and operation entries with
+ * monitorOpInitiated and monitorOpCompleted, according to the given mix.
+ */
+class MonitorTreeGenerator {
+    static final String BASE_DN = "cn=Monitor";
+
+    private static final String[] OPERATIONS = {
+        "Bind", "Unbind", "Search", "Compare", "Modify", "Modrdn", "Add", "Delete", "Abandon", "Extended"};
+    private static final String[] STATISTICS = {"Bytes", "PDU", "Referrals", "Entries"};
+    private static final int BATCH_SIZE = 10000;
+
+    private final int entryCount;
+    private final double connectionShare;
+    private final double counterShare;
+    private final Random random = new Random(42);
+
+    /**
+     * @param entryCount total number of entries, including the fixed ones.
+     * @param mix comma separated shares of the generated entries, like
+     *            "connections=0.8,counters=0.1,operations=0.1".
+     */
+    MonitorTreeGenerator(int entryCount, String mix) {
+        double connections = 0;
+        double counters = 0;
+        double operations = 0;
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split("=");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Invalid entry mix: " + mix);
+            }
+            double share = Double.parseDouble(kv[1]);
+            if ("connections".equals(kv[0])) {
+                connections = share;
+            } else if ("counters".equals(kv[0])) {
+                counters = share;
+            } else if ("operations".equals(kv[0])) {
+                operations = share;
+            } else {
+                throw new IllegalArgumentException("Unknown entry kind in mix: " + kv[0]);
+            }
+        }
+        double total = connections + counters + operations;
+        if (total <= 0) {
+            throw new IllegalArgumentException("Invalid entry mix: " + mix);
+        }
+        this.entryCount = entryCount;
+        this.connectionShare = connections / total;
+        this.counterShare = counters / total;
+    }
+
+    /**
+     * The DNs of the counters every generated tree has, those a config would list
+     * in targetEntryDNs.
+     */
+    static List<String> wellKnownDns() {
+        List<String> dns = new ArrayList<String>();
+        dns.add("cn=Total,cn=Connections," + BASE_DN);
+        dns.add("cn=Current,cn=Connections," + BASE_DN);
+        dns.add("cn=Operations," + BASE_DN);
+        for (String op : OPERATIONS) {
+            dns.add("cn=" + op + ",cn=Operations," + BASE_DN);
+        }
+        for (String stat : STATISTICS) {
+            dns.add("cn=" + stat + ",cn=Statistics," + BASE_DN);
+        }
+        return dns;
+    }
+
+    /**
+     * Add the generated tree to an empty server, returns the number of entries added.
+     */
+    int populate(InMemoryDirectoryServer server) throws LDAPException {
+        List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+        int added = 0;
+
+        batch.add(entry(BASE_DN, "monitorServer", "monitoredInfo", "OpenLDAP: slapd 2.4.44"));
+        batch.add(entry("cn=Connections," + BASE_DN, "monitorContainer", "monitoredInfo", "Connections"));
+        batch.add(entry("cn=Total,cn=Connections," + BASE_DN, "monitorCounterObject", "monitorCounter", counter()));
+        batch.add(entry("cn=Current,cn=Connections," + BASE_DN, "monitorCounterObject", "monitorCounter", counter()));
+        batch.add(operationEntry("cn=Operations," + BASE_DN));
+        for (String op : OPERATIONS) {
+            batch.add(operationEntry("cn=" + op + ",cn=Operations," + BASE_DN));
+        }
+        batch.add(entry("cn=Statistics," + BASE_DN, "monitorContainer", "monitoredInfo", "Statistics"));
+        for (String stat : STATISTICS) {
+            batch.add(entry("cn=" + stat + ",cn=Statistics," + BASE_DN, "monitorCounterObject", "monitorCounter", counter()));
+        }
+        batch.add(entry("cn=Counters," + BASE_DN, "monitorContainer", "monitoredInfo", "Counters"));
+        batch.add(entry("cn=Workers,cn=Operations," + BASE_DN, "monitorContainer", "monitoredInfo", "Workers"));
+
+        int generated = Math.max(0, entryCount - batch.size());
+        int connections = (int) Math.round(generated * connectionShare);
+        int counters = (int) Math.round(generated * counterShare);
+        int operations = generated - connections - counters;
+        for (int i = 0; i < generated; i++) {
+            Entry e;
+            if (i < connections) {
+                e = connectionEntry(1000 + i);
+            } else if (i < connections + counters) {
+                e = entry("cn=Counter " + i + ",cn=Counters," + BASE_DN, "monitorCounterObject", "monitorCounter", counter());
+            } else {
+                e = operationEntry("cn=Worker " + i + ",cn=Workers,cn=Operations," + BASE_DN);
+            }
+            batch.add(e);
+            if (batch.size() == BATCH_SIZE) {
+                added += flush(server, batch);
+            }
+        }
+        added += flush(server, batch);
+        return added;
+    }
+
+    private static int flush(InMemoryDirectoryServer server, List<Entry> batch) throws LDAPException {
+        int n = batch.size();
+        if (n > 0) {
+            server.addEntries(batch);
+            batch.clear();
+        }
+        return n;
+    }
+
+    private Entry connectionEntry(int number) {
+        Entry e = entry("cn=Connection " + number + ",cn=Connections," + BASE_DN, "monitorConnection",
+            "monitorConnectionNumber", String.valueOf(number));
+        e.addAttribute("monitorConnectionOpsReceived", counter());
+        e.addAttribute("monitorConnectionOpsExecuting", "0");
+        e.addAttribute("monitorConnectionOpsPending", "0");
+        e.addAttribute("monitorConnectionOpsCompleted", counter());
+        e.addAttribute("monitorConnectionGet", counter());
+        e.addAttribute("monitorConnectionRead", counter());
+        e.addAttribute("monitorConnectionWrite", "0");
+        e.addAttribute("monitorConnectionMask", "r");
+        e.addAttribute("monitorConnectionListener", "ldap://");
+        e.addAttribute("monitorConnectionPeerDomain", "unknown");
+        e.addAttribute("monitorConnectionPeerAddress", "IP=10.0." + (number / 256 % 256) + "." + (number % 256) + ":39210");
+        e.addAttribute("monitorConnectionLocalAddress", "IP=0.0.0.0:389");
+        e.addAttribute("monitorConnectionProtocol", "3");
+        e.addAttribute("monitorConnectionStartTime", "20180102144216Z");
+        e.addAttribute("monitorConnectionActivityTime", "20180102144216Z");
+        return e;
+    }
+
+    private Entry operationEntry(String dn) {
+        String initiated = counter();
+        Entry e = entry(dn, "monitorOperation", "monitorOpInitiated", initiated);
+        e.addAttribute("monitorOpCompleted", initiated);
+        return e;
+    }
+
+    private static Entry entry(String dn, String objectClass, String attrName, String attrValue) {
+        Entry e = new Entry(dn);
+        e.addAttribute("objectClass", objectClass);
+        e.addAttribute("structuralObjectClass", objectClass);
+        e.addAttribute("cn", dn.substring(3, dn.indexOf(',') < 0 ? dn.length() : dn.indexOf(',')));
+        e.addAttribute(attrName, attrValue);
+        return e;
+    }
+
+    private String counter() {
+        return String.valueOf(random.nextInt(Integer.MAX_VALUE));
+    }
+}
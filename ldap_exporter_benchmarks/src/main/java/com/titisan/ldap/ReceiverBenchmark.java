@@ -0,0 +1,65 @@
+package com.titisan.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rule evaluation cost of LdapCollector.Receiver.recordLdapEntry, per entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiverBenchmark {
+    private static final int ENTRIES = 10000;
+
+    @Param({"10", "40", "160"})
+    public int ruleCount;
+
+    @Param({"0", "2", "8"})
+    public int labelCount;
+
+    @Param({"10000", "0"})
+    public int seriesCacheSize;
+
+    private LdapCollector collector;
+    private String[] entryNames;
+    private String[] attrDescriptions;
+    private final Double value = 42.0;
+
+    @Setup
+    public void setUp() throws Exception {
+        collector = new LdapCollector(BenchmarkData.config(ruleCount, labelCount, seriesCacheSize));
+        entryNames = BenchmarkData.entryNames(ENTRIES);
+        attrDescriptions = new String[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            attrDescriptions[i] = entryNames[i];
+        }
+        // Fill the series cache like a previous scrape would have.
+        recordLdapEntry();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public SampleFamilies recordLdapEntry() {
+        LdapCollector.Receiver receiver = collector.newReceiver();
+        for (int i = 0; i < ENTRIES; i++) {
+            receiver.recordLdapEntry(entryNames[i], value, "monitorCounter", attrDescriptions[i]);
+        }
+        return receiver.families;
+    }
+}
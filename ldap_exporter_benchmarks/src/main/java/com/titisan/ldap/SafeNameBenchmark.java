@@ -0,0 +1,37 @@
+package com.titisan.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Metric and label name sanitizing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SafeNameBenchmark {
+
+    @Param({
+        "ldap_operations_completed_total",
+        "cn=Bind,cn=Operations_monitorOpInitiated",
+        "cn=Max File Descriptors,cn=Connections,cn=Monitor"})
+    public String name;
+
+    @Benchmark
+    public String safeName() {
+        return LdapCollector.safeName(name);
+    }
+}
@@ -0,0 +1,61 @@
+package com.titisan.ldap;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LdapScraper.scrapeBackMonitorData walking already decoded search results
+ * into a receiver, everything a scrape does after the LDAP round trips.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScrapeBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entryCount;
+
+    @Param({"1", "40"})
+    public int ruleCount;
+
+    @Param({"0", "4"})
+    public int labelCount;
+
+    private LdapCollector collector;
+    private List<SearchResult> results;
+
+    @Setup
+    public void setUp() throws Exception {
+        collector = new LdapCollector(ruleCount == 1 ? "---" : BenchmarkData.config(ruleCount, labelCount, 10000));
+        results = BenchmarkData.searchResults(entryCount);
+        scrapeBackMonitorData();
+    }
+
+    @Benchmark
+    public SampleFamilies scrapeBackMonitorData() throws NamingException {
+        LdapCollector.Receiver receiver = collector.newReceiver();
+        LdapScraper scraper = new LdapScraper((LdapConnectionPool) null, "cn=Monitor",
+            Collections.<String>emptyList(), Collections.<String>emptyList(), Collections.<String>emptyList(), receiver);
+        scraper.scrapeBackMonitorData(BenchmarkData.enumeration(results), null);
+        return receiver.families;
+    }
+}
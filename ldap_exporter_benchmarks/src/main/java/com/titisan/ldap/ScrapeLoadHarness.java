@@ -0,0 +1,282 @@
+package com.titisan.ldap;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.OperationType;
+
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * End-to-end scrape load harness.
+ *
+ * Starts an in-memory directory server with a generated cn=Monitor tree, then
+ * scrapes it through LdapCollector.collect() and through the HTTP endpoint with
+ * a number of concurrent clients, and reports the scrape latency percentiles,
+ * the exporter heap and the LDAP operations the server saw.
+ *
+ * Usage: java -cp benchmarks.jar com.titisan.ldap.ScrapeLoadHarness [--option=value ...]
+ *
+ * Options:
+ *   entries      number of entries in cn=Monitor (default 10000)
+ *   mix          shares of generated entries (default connections=0.8,counters=0.1,operations=0.1)
+ *   concurrency  number of concurrent scrapers (default 4)
+ *   requests     number of measured scrapes per mode (default 200)
+ *   warmup       number of scrapes before measuring (default 20)
+ *   mode         collect, http or both (default both)
+ *   ldapPort     port of the directory server (default 10389)
+ *   config       exporter YAML config, its ldapUrl must point to ldap://127.0.0.1:ldapPort
+ *                (default: credentials only, default export format)
+ *   backends     comma separated scraper backends to compare, e.g. jndi,unboundid
+ *                (default: the backend of the config)
+ *   targets      true to also scrape with targetEntryDNs listing the counters every
+ *                generated tree has, against the subtree search (default false)
+ */
+public class ScrapeLoadHarness {
+    static final String USERNAME = "cn=Directory Manager";
+    static final String PASSWORD = "password";
+
+    private final Map<String, String> options;
+    private final LdapOperationCounter operations = new LdapOperationCounter();
+
+    ScrapeLoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("entries", "10000");
+        options.put("mix", "connections=0.8,counters=0.1,operations=0.1");
+        options.put("concurrency", "4");
+        options.put("requests", "200");
+        options.put("warmup", "20");
+        options.put("mode", "both");
+        options.put("ldapPort", "10389");
+        options.put("targets", "false");
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Usage: ScrapeLoadHarness [--option=value ...], see the class documentation");
+                System.exit(1);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new ScrapeLoadHarness(options).run();
+    }
+
+    void run() throws Exception {
+        int ldapPort = intOption("ldapPort");
+        InMemoryDirectoryServer server = startServer(ldapPort);
+        try {
+            long start = System.nanoTime();
+            int added = new MonitorTreeGenerator(intOption("entries"), options.get("mix")).populate(server);
+            System.out.printf("Generated %d entries in %.1f s (%s)%n", added, (System.nanoTime() - start) / 1e9, options.get("mix"));
+
+            long baselineHeap = usedHeapAfterGc();
+            String yaml = options.containsKey("config")
+                ? new String(Files.readAllBytes(new File(options.get("config")).toPath()), StandardCharsets.UTF_8)
+                : "---\nldapUrl: ldap://127.0.0.1:" + ldapPort + "\nusername: " + USERNAME + "\npassword: " + PASSWORD + "\n";
+            if (options.containsKey("backends")) {
+                // The same tree scraped with each backend in turn.
+                for (String backend : options.get("backends").split(",")) {
+                    scrapeModes(yaml + "\nbackend: " + backend + "\n", backend, baselineHeap);
+                }
+            } else {
+                scrapeModes(yaml, null, baselineHeap);
+            }
+        } finally {
+            server.shutDown(true);
+        }
+    }
+
+    /**
+     * Scrape the tree with a subtree search, then only the target entries if asked for.
+     */
+    private void scrapeModes(String yaml, String backend, long baselineHeap) throws Exception {
+        if (!Boolean.parseBoolean(options.get("targets"))) {
+            scrape(yaml, backend == null ? "" : " [" + backend + "]", baselineHeap);
+            return;
+        }
+        String prefix = backend == null ? " [" : " [" + backend + " ";
+        scrape(yaml, prefix + "subtree]", baselineHeap);
+        StringBuilder targets = new StringBuilder(yaml).append("\ntargetEntryDNs:\n");
+        for (String dn : MonitorTreeGenerator.wellKnownDns()) {
+            targets.append("- ").append(dn).append('\n');
+        }
+        scrape(targets.toString(), prefix + "targets]", baselineHeap);
+    }
+
+    /**
+     * Scrape the tree with the given exporter config in the configured modes.
+     */
+    private void scrape(String yaml, String suffix, long baselineHeap) throws Exception {
+        // Not registered, the HTTP server writes its samples itself as WebServer does.
+        final LdapCollector collector = new LdapCollector(yaml);
+
+        String mode = options.get("mode");
+        if ("collect".equals(mode) || "both".equals(mode)) {
+            measure("collect()" + suffix, new Callable<Integer>() {
+                public Integer call() {
+                    return collector.collect().size();
+                }
+            }, baselineHeap);
+        }
+        if ("http".equals(mode) || "both".equals(mode)) {
+            ExporterHttpServer httpServer = new ExporterHttpServer(new InetSocketAddress("127.0.0.1", 0), new CollectorRegistry(), true);
+            httpServer.setLdapCollector(collector);
+            httpServer.setExpositionMaxAge(new Callable<Long>() {
+                public Long call() {
+                    return collector.getExpositionCacheMillis();
+                }
+            });
+            try {
+                final URL url = new URL("http://127.0.0.1:" + httpServer.getPort() + "/metrics");
+                measure("HTTP /metrics" + suffix, new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        return fetch(url);
+                    }
+                }, baselineHeap);
+            } finally {
+                httpServer.stop();
+            }
+        }
+    }
+
+    private InMemoryDirectoryServer startServer(int port) throws Exception {
+        InMemoryDirectoryServerConfig serverConfig = new InMemoryDirectoryServerConfig(MonitorTreeGenerator.BASE_DN);
+        serverConfig.addAdditionalBindCredentials(USERNAME, PASSWORD);
+        serverConfig.setAuthenticationRequiredOperationTypes(OperationType.SEARCH);
+        serverConfig.setSchema(null);
+        serverConfig.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("harness", port));
+        serverConfig.addInMemoryOperationInterceptor(operations);
+        InMemoryDirectoryServer server = new InMemoryDirectoryServer(serverConfig);
+        server.startListening();
+        return server;
+    }
+
+    /**
+     * Run the scrape with the configured concurrency and print the results.
+     */
+    private void measure(String name, final Callable<Integer> scrape, long baselineHeap) throws Exception {
+        int concurrency = intOption("concurrency");
+        final int requests = intOption("requests");
+        int warmup = intOption("warmup");
+
+        for (int i = 0; i < warmup; i++) {
+            scrape.call();
+        }
+        operations.reset();
+        resetPeakHeap();
+
+        final long[] latencies = new long[requests];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        long start = System.nanoTime();
+        for (int w = 0; w < concurrency; w++) {
+            workers.add(pool.submit(new Runnable() {
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        long t0 = System.nanoTime();
+                        try {
+                            scrape.call();
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - t0;
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("%s: %d scrapes, concurrency %d, %d failed, %.1f scrapes/s%n",
+            name, requests, concurrency, failures.get(), requests / (elapsed / 1e9));
+        System.out.printf("  latency ms: p50 %.2f  p99 %.2f  max %.2f%n",
+            percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6, latencies[requests - 1] / 1e6);
+        // The directory server runs in the same JVM, its tree is part of the baseline.
+        System.out.printf("  exporter heap MB: peak %.1f  retained %.1f%n",
+            (peakHeap() - baselineHeap) / 1048576.0, (usedHeapAfterGc() - baselineHeap) / 1048576.0);
+        System.out.printf("  LDAP operations: %d (%s), %.1f per scrape%n",
+            operations.operations(), operations, operations.operations() / (double) requests);
+    }
+
+    static int fetch(URL url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            if (connection.getResponseCode() != 200) {
+                throw new IllegalStateException("HTTP " + connection.getResponseCode());
+            }
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[8192];
+            int total = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+            }
+            in.close();
+            return total;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of the per pool peaks, an upper bound of the actual peak.
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+}
@@ -0,0 +1,417 @@
+package com.titisan.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * The Prometheus HTTP server, timing the text exposition of the metrics
+ * as the "exposition" phase of ldapexporter_scrape_phase_duration_seconds.
+ *
+ * Unfiltered requests share their response: the metrics are collected and
+ * rendered once into a snapshot holding the text format and its gzipped copy,
+ * which concurrent requests and those arriving within the configured maximum
+ * age are served as is.
+ *
+ * Requests run on an HttpExecutor, which bounds the requests waiting for a thread.
+ *
+ * The LDAP collector can be left out of the registry and given to
+ * setLdapCollector instead, so that unfiltered requests write its samples
+ * without building a MetricFamilySamples for each family and a Sample for each
+ * sample.
+ *
+ * With a probe endpoint, /probe?target=ldap://host:port&module=name scrapes the
+ * given server, so that one exporter can watch several servers.
+ *
+ * The LDAP collector and the probes scrape within the timeout Prometheus sends
+ * in the X-Prometheus-Scrape-Timeout-Seconds header.
+ */
+public class ExporterHttpServer {
+  static final Counter expositionRequests = Counter.build()
+    .name("ldapexporter_exposition_requests_total")
+    .help("Number of unfiltered metrics requests, by whether they rendered a new snapshot or were served a cached one.")
+    .labelNames("result").register();
+
+  private static final Logger LOGGER = Logger.getLogger(ExporterHttpServer.class.getName());
+
+  private final HttpServer server;
+  private final HttpExecutor executor;
+  private final MetricsHandler metricsHandler;
+
+  public ExporterHttpServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon) throws IOException {
+    this(addr, registry, daemon, HttpExecutor.bounded(5, 100, daemon));
+  }
+
+  public ExporterHttpServer(InetSocketAddress addr, CollectorRegistry registry, boolean daemon, HttpExecutor executor) throws IOException {
+    this.executor = executor;
+    server = HttpServer.create();
+    server.bind(addr, 3);
+    metricsHandler = new MetricsHandler(registry);
+    createContext("/", metricsHandler);
+    createContext("/metrics", metricsHandler);
+    server.setExecutor(executor);
+    start(daemon);
+  }
+
+  /*
+  The server dispatcher thread inherits the daemon flag of the thread starting it.
+  */
+  private void start(boolean daemon) {
+    if (Thread.currentThread().isDaemon() == daemon) {
+      server.start();
+      return;
+    }
+    Thread starter = new Thread(new Runnable() {
+      public void run() {
+        server.start();
+      }
+    });
+    starter.setDaemon(daemon);
+    starter.start();
+    try {
+      starter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void createContext(String path, HttpHandler handler) {
+    server.createContext(path, handler).getFilters().add(HttpExecutor.rejectionFilter());
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  /**
+   * Serve unfiltered requests from a snapshot up to maxAgeMillis old, read on
+   * each request. By default only the requests arriving during a render share it.
+   */
+  public void setExpositionMaxAge(Callable<Long> maxAgeMillis) {
+    metricsHandler.maxAgeMillis = maxAgeMillis;
+  }
+
+  /**
+   * Serve the samples of collector with those of the registry, the collector
+   * must not be registered.
+   */
+  public void setLdapCollector(LdapCollector collector) {
+    metricsHandler.collector = collector;
+  }
+
+  /**
+   * Serve the text returned by body on path, for debugging endpoints.
+   */
+  public void addTextEndpoint(String path, final Callable<String> body) {
+    createContext(path, new HttpHandler() {
+      public void handle(HttpExchange t) throws IOException {
+        byte[] response;
+        int status = 200;
+        try {
+          response = body.call().getBytes("UTF-8");
+        } catch (Exception e) {
+          response = (e.toString() + "\n").getBytes("UTF-8");
+          status = 500;
+        }
+        t.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        t.sendResponseHeaders(status, response.length);
+        OutputStream os = t.getResponseBody();
+        os.write(response);
+        os.close();
+        t.close();
+      }
+    });
+  }
+
+  /**
+   * Serve probes of the servers given in the target parameter on /probe,
+   * with the config of the module parameter.
+   */
+  public void addProbeEndpoint(final LdapCollector collector) {
+    createContext("/probe", new HttpHandler() {
+      public void handle(HttpExchange t) throws IOException {
+        Map<String, String> params = parseParams(t.getRequestURI().getRawQuery());
+        byte[] body;
+        int status = 200;
+        String contentType = TextFormat.CONTENT_TYPE_004;
+        try {
+          List<MetricFamilySamples> mfs = collector.probe(params.get("target"), params.get("module"), scrapeTimeoutSeconds(t));
+          ByteArrayOutputStream response = new ByteArrayOutputStream();
+          OutputStreamWriter osw = new OutputStreamWriter(response);
+          TextFormat.write004(osw, Collections.enumeration(mfs));
+          osw.close();
+          body = response.toByteArray();
+        } catch (IllegalArgumentException e) {
+          body = (e.getMessage() + "\n").getBytes("UTF-8");
+          status = 400;
+          contentType = "text/plain; charset=utf-8";
+        } catch (RejectedExecutionException e) {
+          body = (e.getMessage() + ", try again later.\n").getBytes("UTF-8");
+          status = 503;
+          contentType = "text/plain; charset=utf-8";
+          t.getResponseHeaders().set("Retry-After", "1");
+        }
+        if (status == 200 && shouldUseCompression(t)) {
+          body = gzip(body);
+          t.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        t.getResponseHeaders().set("Content-Type", contentType);
+        t.sendResponseHeaders(status, body.length);
+        OutputStream os = t.getResponseBody();
+        os.write(body);
+        os.close();
+        t.close();
+      }
+    });
+  }
+
+  /**
+   * A rendered exposition, never modified once published.
+   */
+  static class Exposition {
+    // When the render started collecting, and when it was published.
+    final long renderedNanos;
+    final long publishedNanos;
+    final byte[] plain;
+    private byte[] gzipped;
+
+    Exposition(long renderedNanos, long publishedNanos, byte[] plain) {
+      this.renderedNanos = renderedNanos;
+      this.publishedNanos = publishedNanos;
+      this.plain = plain;
+    }
+
+    /**
+     * Whether a request received at requestNanos is served this exposition:
+     * it arrived before it was published, so it waited for its render, or it
+     * was rendered less than maxAgeNanos before the request.
+     */
+    boolean serves(long requestNanos, long maxAgeNanos) {
+      return publishedNanos - requestNanos >= 0 || renderedNanos - (requestNanos - maxAgeNanos) >= 0;
+    }
+
+    /**
+     * The gzipped text, compressed by the first request asking for it.
+     */
+    synchronized byte[] gzipped() throws IOException {
+      if (gzipped == null) {
+        gzipped = gzip(plain);
+      }
+      return gzipped;
+    }
+  }
+
+  static boolean shouldUseCompression(HttpExchange t) {
+    List<String> encodingHeaders = t.getRequestHeaders().get("Accept-Encoding");
+    if (encodingHeaders == null) {
+      return false;
+    }
+    for (String encodingHeader : encodingHeaders) {
+      for (String encoding : encodingHeader.split(",")) {
+        if (encoding.trim().equalsIgnoreCase("gzip")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /*
+  The scrape timeout of the Prometheus server, 0 if the request has none.
+  */
+  static double scrapeTimeoutSeconds(HttpExchange t) {
+    String timeout = t.getRequestHeaders().getFirst("X-Prometheus-Scrape-Timeout-Seconds");
+    if (timeout == null) {
+      return 0;
+    }
+    try {
+      return Double.parseDouble(timeout.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /*
+  The metric names asked for with name[] parameters, empty for all.
+  */
+  static Set<String> parseQuery(String query) throws IOException {
+    Set<String> names = new HashSet<String>();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int idx = pair.indexOf('=');
+        if (idx != -1 && URLDecoder.decode(pair.substring(0, idx), "UTF-8").equals("name[]")) {
+          names.add(URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+        }
+      }
+    }
+    return names;
+  }
+
+  /*
+  The query parameters, the first value of each.
+  */
+  static Map<String, String> parseParams(String query) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query != null) {
+      for (String pair : query.split("&")) {
+        int idx = pair.indexOf('=');
+        if (idx != -1) {
+          String name = URLDecoder.decode(pair.substring(0, idx), "UTF-8");
+          if (!params.containsKey(name)) {
+            params.put(name, URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+          }
+        }
+      }
+    }
+    return params;
+  }
+
+  static byte[] gzip(byte[] plain) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4 + 64);
+    GZIPOutputStream os = new GZIPOutputStream(bytes);
+    os.write(plain);
+    os.close();
+    return bytes.toByteArray();
+  }
+
+  static class MetricsHandler implements HttpHandler {
+    private final CollectorRegistry registry;
+    private final Object renderLock = new Object();
+    private volatile Exposition exposition;
+    volatile Callable<Long> maxAgeMillis;
+    volatile LdapCollector collector;
+
+    MetricsHandler(CollectorRegistry registry) {
+      this.registry = registry;
+    }
+
+    public void handle(HttpExchange t) throws IOException {
+      String query = t.getRequestURI().getRawQuery();
+      Set<String> names = parseQuery(query);
+      boolean gzip = shouldUseCompression(t);
+      double scrapeTimeoutSeconds = scrapeTimeoutSeconds(t);
+      byte[] body;
+      if (names.isEmpty()) {
+        Exposition current = exposition(System.nanoTime(), scrapeTimeoutSeconds);
+        body = gzip ? current.gzipped() : current.plain;
+      } else {
+        body = render(names, scrapeTimeoutSeconds);
+        if (gzip) {
+          body = gzip(body);
+        }
+      }
+      if (gzip) {
+        t.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      t.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+      t.sendResponseHeaders(200, body.length);
+      OutputStream os = t.getResponseBody();
+      os.write(body);
+      os.close();
+      t.close();
+    }
+
+    /**
+     * The latest exposition if fresh enough for a request received at requestNanos,
+     * else a new one, collected within scrapeTimeoutSeconds. Requests waiting for
+     * a render are served its result.
+     */
+    Exposition exposition(long requestNanos, double scrapeTimeoutSeconds) throws IOException {
+      long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis());
+      Exposition current = exposition;
+      if (current != null && current.serves(requestNanos, maxAgeNanos)) {
+        expositionRequests.labels("hit").inc();
+        return current;
+      }
+      synchronized (renderLock) {
+        current = exposition;
+        if (current != null && current.serves(requestNanos, maxAgeNanos)) {
+          expositionRequests.labels("hit").inc();
+          return current;
+        }
+        expositionRequests.labels("render").inc();
+        long renderedNanos = System.nanoTime();
+        byte[] plain = render(Collections.<String>emptySet(), scrapeTimeoutSeconds);
+        current = new Exposition(renderedNanos, System.nanoTime(), plain);
+        exposition = current;
+        return current;
+      }
+    }
+
+    private long maxAgeMillis() {
+      Callable<Long> maxAge = maxAgeMillis;
+      if (maxAge == null) {
+        return 0L;
+      }
+      try {
+        return maxAge.call();
+      } catch (Exception e) {
+        LOGGER.warning("Cannot get the exposition maximum age, not caching: " + e);
+        return 0L;
+      }
+    }
+
+    private byte[] render(Set<String> names, double scrapeTimeoutSeconds) throws IOException {
+      // Collect first, so that only the encoding is timed.
+      List<MetricFamilySamples> mfs = Collections.list(registry.filteredMetricFamilySamples(names));
+      SampleFamilies families = null;
+      LdapCollector ldapCollector = collector;
+      if (ldapCollector != null && names.isEmpty()) {
+        families = ldapCollector.collectFamilies(scrapeTimeoutSeconds);
+      } else if (ldapCollector != null) {
+        for (MetricFamilySamples family : ldapCollector.collectFamilies(scrapeTimeoutSeconds).toMetricFamilySamples()) {
+          if (names.contains(family.name)) {
+            mfs.add(family);
+          }
+        }
+      }
+
+      // Sized like the last exposition, whatever thread renders: virtual threads would not reuse a per-thread buffer.
+      Exposition previous = exposition;
+      ByteArrayOutputStream response = new ByteArrayOutputStream(
+          names.isEmpty() && previous != null ? previous.plain.length + previous.plain.length / 16 : 4096);
+      Histogram.Timer timer = LdapCollector.scrapePhaseDuration.labels("exposition").startTimer();
+      try {
+        OutputStreamWriter osw = new OutputStreamWriter(response);
+        TextFormat.write004(osw, Collections.enumeration(mfs));
+        if (families != null) {
+          families.write(osw);
+        }
+        osw.flush();
+        osw.close();
+      } finally {
+        timer.observeDuration();
+      }
+      return response.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package com.titisan.ldap;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/**
+ * Executor running the HTTP requests, with a bound on the requests waiting.
+ *
+ * Requests run on a fixed pool of threads, or on virtual threads when asked for
+ * and the runtime has them, with at most threads requests running and queueSize
+ * waiting. Requests beyond that are answered 503 on the HTTP server dispatcher
+ * thread without running their handler, instead of piling up while the LDAP
+ * server is slow.
+ */
+public class HttpExecutor implements Executor {
+  static final Gauge inFlight = Gauge.build()
+    .name("ldapexporter_http_requests_in_flight")
+    .help("Number of HTTP requests being handled.").register();
+
+  static final Histogram queueWait = Histogram.build()
+    .name("ldapexporter_http_queue_wait_seconds")
+    .help("Time HTTP requests waited for a thread, in seconds.")
+    .buckets(.001, .005, .01, .05, .1, .5, 1, 5, 10).register();
+
+  static final Counter rejected = Counter.build()
+    .name("ldapexporter_http_requests_rejected_total")
+    .help("Number of HTTP requests answered 503 because too many were already waiting.").register();
+
+  private static final Logger LOGGER = Logger.getLogger(HttpExecutor.class.getName());
+
+  // Set while running a rejected request on the dispatcher thread.
+  private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<Boolean>();
+
+  private final ExecutorService executor;
+  // Bound the requests of the virtual thread executor, running or waiting and running, null for the pool.
+  private final Semaphore admitted;
+  private final Semaphore running;
+
+  private HttpExecutor(ExecutorService executor, Semaphore admitted, Semaphore running) {
+    this.executor = executor;
+    this.admitted = admitted;
+    this.running = running;
+  }
+
+  /**
+   * A pool of threads, with up to queueSize requests waiting for one.
+   */
+  public static HttpExecutor bounded(int threads, int queueSize, boolean daemon) {
+    BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, queue, threadFactory(daemon));
+    return new HttpExecutor(pool, null, null);
+  }
+
+  /**
+   * A virtual thread per request with at most threads requests running and
+   * queueSize waiting for them to end, or a pool if the runtime has no virtual
+   * threads (before Java 21). Waiting requests hold a virtual thread, not a
+   * platform one.
+   */
+  public static HttpExecutor virtual(int threads, int queueSize, boolean daemon) {
+    ExecutorService executor;
+    try {
+      executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      LOGGER.warning("Virtual threads are not available on this runtime, using a pool of " + threads + " threads");
+      return bounded(threads, queueSize, daemon);
+    }
+    return new HttpExecutor(executor, new Semaphore(threads + queueSize), new Semaphore(threads));
+  }
+
+  public void execute(final Runnable exchange) {
+    final long queuedNanos = System.nanoTime();
+    if (admitted != null && !admitted.tryAcquire()) {
+      reject(exchange);
+      return;
+    }
+    Runnable task = new Runnable() {
+      public void run() {
+        if (running != null) {
+          // Blocks the virtual thread of the request only.
+          running.acquireUninterruptibly();
+        }
+        queueWait.observe((System.nanoTime() - queuedNanos) / 1.0E9);
+        inFlight.inc();
+        try {
+          exchange.run();
+        } finally {
+          inFlight.dec();
+          if (running != null) {
+            running.release();
+            admitted.release();
+          }
+        }
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      if (admitted != null) {
+        admitted.release();
+      }
+      reject(exchange);
+    }
+  }
+
+  /*
+  Throwing would kill the dispatcher thread, so the exchange is run here and
+  answered by the filter.
+  */
+  private static void reject(Runnable exchange) {
+    rejected.inc();
+    REJECTED.set(Boolean.TRUE);
+    try {
+      exchange.run();
+    } finally {
+      REJECTED.remove();
+    }
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * The filter answering the rejected requests, to install on every context.
+   */
+  static Filter rejectionFilter() {
+    return new Filter() {
+      public void doFilter(HttpExchange t, Chain chain) throws IOException {
+        if (REJECTED.get() == null) {
+          chain.doFilter(t);
+          return;
+        }
+        byte[] response = "Too many requests waiting, try again later.\n".getBytes("UTF-8");
+        t.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        t.getResponseHeaders().set("Retry-After", "1");
+        t.sendResponseHeaders(503, response.length);
+        t.getResponseBody().write(response);
+        t.close();
+      }
+
+      public String description() {
+        return "Answers 503 to the requests rejected by the executor";
+      }
+    };
+  }
+
+  private static ThreadFactory threadFactory(final boolean daemon) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ldapexporter-http-" + count.incrementAndGet());
+        thread.setDaemon(daemon);
+        return thread;
+      }
+    };
+  }
+}
@@ -2,9 +2,9 @@ package com.titisan.ldap;
 
 import java.io.File;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.HTTPServer;
 
 public class WebServer {
 
@@ -26,13 +26,35 @@ public class WebServer {
        socket = new InetSocketAddress(port);
      }
 
+     // Not registered, the server writes its samples itself.
+     final LdapCollector collector;
      if (args.length == 2) {
-      new LdapCollector(new File(args[1])).register();
+      collector = new LdapCollector(new File(args[1]));
      } else {
-      new LdapCollector("---").register();
+      collector = new LdapCollector("---");
      }
 
      
-     new HTTPServer(socket, CollectorRegistry.defaultRegistry);
+     HttpExecutor executor = "virtual".equals(collector.getHttpExecutor())
+         ? HttpExecutor.virtual(collector.getHttpThreads(), collector.getHttpQueueSize(), false)
+         : HttpExecutor.bounded(collector.getHttpThreads(), collector.getHttpQueueSize(), false);
+     ExporterHttpServer server = new ExporterHttpServer(socket, CollectorRegistry.defaultRegistry, false, executor);
+     server.setLdapCollector(collector);
+     server.setExpositionMaxAge(new Callable<Long>() {
+       public Long call() {
+         return collector.getExpositionCacheMillis();
+       }
+     });
+     server.addTextEndpoint("/rules", new Callable<String>() {
+       public String call() {
+         return collector.ruleProfile();
+       }
+     });
+     server.addTextEndpoint("/plan", new Callable<String>() {
+       public String call() {
+         return collector.queryPlan();
+       }
+     });
+     server.addProbeEndpoint(collector);
    }
 }
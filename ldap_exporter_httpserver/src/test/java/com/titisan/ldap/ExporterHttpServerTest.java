@@ -0,0 +1,76 @@
+package com.titisan.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+public class ExporterHttpServerTest {
+    /**
+     * Counts the collects, the first one waiting to be released.
+     */
+    private static class SlowCollector extends Collector {
+        final AtomicInteger collects = new AtomicInteger();
+        final CountDownLatch collecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public List<MetricFamilySamples> collect() {
+            collects.incrementAndGet();
+            collecting.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Collections.singletonList(new MetricFamilySamples("collects", Type.GAUGE, "Collects.",
+                new ArrayList<MetricFamilySamples.Sample>()));
+        }
+    }
+
+    @Test
+    public void testRequestsDuringARenderAreServedItsResult() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        final SlowCollector collector = new SlowCollector().register(registry);
+        final ExporterHttpServer.MetricsHandler handler = new ExporterHttpServer.MetricsHandler(registry);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ExporterHttpServer.Exposition> first = executor.submit(new Callable<ExporterHttpServer.Exposition>() {
+                public ExporterHttpServer.Exposition call() throws Exception {
+                    return handler.exposition(System.nanoTime(), 0);
+                }
+            });
+            collector.collecting.await();
+            // Received while the first request renders, it waits for its result.
+            final long requestNanos = System.nanoTime();
+            Future<ExporterHttpServer.Exposition> second = executor.submit(new Callable<ExporterHttpServer.Exposition>() {
+                public ExporterHttpServer.Exposition call() throws Exception {
+                    return handler.exposition(requestNanos, 0);
+                }
+            });
+            Thread.sleep(100);
+            collector.release.countDown();
+            assertSame(first.get(), second.get());
+            assertEquals(1, collector.collects.get());
+
+            // Without a maximum age, a later request renders again.
+            assertNotSame(first.get(), handler.exposition(System.nanoTime(), 0));
+            assertEquals(2, collector.collects.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
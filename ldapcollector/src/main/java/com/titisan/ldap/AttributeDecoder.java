@@ -0,0 +1,14 @@
+package com.titisan.ldap;
+
+/**
+ * Turns the string value of an LDAP attribute into a metric value.
+ *
+ * Decoders run on every scraped attribute, so they must not throw on values
+ * they cannot decode, filling in a stack trace each time, but return null.
+ */
+public interface AttributeDecoder {
+    /**
+     * The value as a number, null if it is not one.
+     */
+    Double decode(String value);
+}
@@ -0,0 +1,275 @@
+package com.titisan.ldap;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The decoder of each attribute, by case-insensitive attribute name.
+ *
+ * Attributes are decoded as numbers unless configured otherwise. The timestamps
+ * maintained by the servers are decoded from generalizedTime to seconds since
+ * the epoch, so they become usable gauges when asked for with
+ * extraAttributesToReturn.
+ */
+public class AttributeDecoders {
+    /**
+     * Integers and decimals, with an optional exponent, as Double.valueOf reads them.
+     */
+    static final AttributeDecoder NUMBER = new AttributeDecoder() {
+        public Double decode(String value) {
+            return parseNumber(value);
+        }
+    };
+
+    /**
+     * generalizedTime (RFC 4517) to seconds since the epoch.
+     */
+    static final AttributeDecoder GENERALIZED_TIME = new AttributeDecoder() {
+        public Double decode(String value) {
+            return parseGeneralizedTime(value);
+        }
+    };
+
+    /**
+     * TRUE as 1 and FALSE as 0.
+     */
+    static final AttributeDecoder BOOLEAN = new AttributeDecoder() {
+        public Double decode(String value) {
+            if ("TRUE".equalsIgnoreCase(value)) {
+                return 1.0;
+            }
+            if ("FALSE".equalsIgnoreCase(value)) {
+                return 0.0;
+            }
+            return null;
+        }
+    };
+
+    /**
+     * Never a metric.
+     */
+    static final AttributeDecoder IGNORE = new AttributeDecoder() {
+        public Double decode(String value) {
+            return null;
+        }
+    };
+
+    static final AttributeDecoders DEFAULTS = new AttributeDecoders(Collections.<String, String>emptyMap());
+
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    private final Map<String, AttributeDecoder> decoders = new TreeMap<String, AttributeDecoder>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * @param decoderNames decoder name by attribute name, over the defaults.
+     * @throws IllegalArgumentException for unknown decoder names.
+     */
+    public AttributeDecoders(Map<String, String> decoderNames) {
+        decoders.put("createTimestamp", GENERALIZED_TIME);
+        decoders.put("modifyTimestamp", GENERALIZED_TIME);
+        decoders.put("monitorTimestamp", GENERALIZED_TIME);
+        for (Map.Entry<String, String> entry : decoderNames.entrySet()) {
+            AttributeDecoder decoder = forName(entry.getValue());
+            if (decoder == null) {
+                throw new IllegalArgumentException("Unknown decoder " + entry.getValue() + " for attribute " + entry.getKey()
+                    + ", expected number, generalizedTime, boolean or ignore");
+            }
+            decoders.put(entry.getKey(), decoder);
+        }
+    }
+
+    /**
+     * The decoder of an attribute.
+     */
+    AttributeDecoder get(String attributeName) {
+        AttributeDecoder decoder = decoders.get(attributeName);
+        return decoder == null ? NUMBER : decoder;
+    }
+
+    static AttributeDecoder forName(String name) {
+        if ("number".equals(name)) {
+            return NUMBER;
+        }
+        if ("generalizedTime".equals(name)) {
+            return GENERALIZED_TIME;
+        }
+        if ("boolean".equals(name)) {
+            return BOOLEAN;
+        }
+        if ("ignore".equals(name)) {
+            return IGNORE;
+        }
+        return null;
+    }
+
+    /*
+    Check the syntax first so that Double.valueOf never throws, and skip it
+    altogether for the plain integers most counters are.
+    */
+    static Double parseNumber(String value) {
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            negative = value.charAt(i) == '-';
+            i++;
+        }
+        if (value.regionMatches(i, "NaN", 0, 3) && i + 3 == end) {
+            return Double.NaN;
+        }
+        if (value.regionMatches(i, "Infinity", 0, 8) && i + 8 == end) {
+            return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        int digitsStart = i;
+        long integer = 0;
+        while (i < end && isDigit(value.charAt(i))) {
+            integer = integer * 10 + (value.charAt(i) - '0');
+            i++;
+        }
+        int integerDigits = i - digitsStart;
+        if (i == end && integerDigits > 0 && integerDigits <= 18) {
+            return negative ? -(double) integer : (double) integer;
+        }
+        int fractionDigits = 0;
+        if (i < end && value.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(value.charAt(i))) {
+                i++;
+                fractionDigits++;
+            }
+        }
+        if (integerDigits + fractionDigits == 0) {
+            return null;
+        }
+        if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                i++;
+            }
+            int exponentStart = i;
+            while (i < end && isDigit(value.charAt(i))) {
+                i++;
+            }
+            if (i == exponentStart) {
+                return null;
+            }
+        }
+        if (i != end) {
+            return null;
+        }
+        return Double.valueOf(value.substring(start, end));
+    }
+
+    /*
+    YYYYMMDDHH[MM[SS]][(.|,)fraction](Z|(+|-)HH[MM]), the fraction being of the last field given.
+    */
+    static Double parseGeneralizedTime(String value) {
+        int length = value.length();
+        int year = digits(value, 0, 4);
+        int month = digits(value, 4, 2);
+        int day = digits(value, 6, 2);
+        int hour = digits(value, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1] || hour < 0 || hour > 23) {
+            return null;
+        }
+        if (month == 2 && day == 29 && !isLeapYear(year)) {
+            return null;
+        }
+        int i = 10;
+        int minute = 0;
+        int second = 0;
+        double fractionUnit = 3600;
+        if (i < length && isDigit(value.charAt(i))) {
+            minute = digits(value, i, 2);
+            if (minute < 0 || minute > 59) {
+                return null;
+            }
+            i += 2;
+            fractionUnit = 60;
+            if (i < length && isDigit(value.charAt(i))) {
+                second = digits(value, i, 2);
+                // 60 is a leap second.
+                if (second < 0 || second > 60) {
+                    return null;
+                }
+                i += 2;
+                fractionUnit = 1;
+            }
+        }
+        double fraction = 0;
+        if (i < length && (value.charAt(i) == '.' || value.charAt(i) == ',')) {
+            i++;
+            double scale = 1;
+            int fractionStart = i;
+            while (i < length && isDigit(value.charAt(i))) {
+                fraction = fraction * 10 + (value.charAt(i) - '0');
+                scale *= 10;
+                i++;
+            }
+            if (i == fractionStart) {
+                return null;
+            }
+            fraction = fraction / scale * fractionUnit;
+        }
+        int offset;
+        if (i + 1 == length && value.charAt(i) == 'Z') {
+            offset = 0;
+        } else if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-') && (i + 3 == length || i + 5 == length)) {
+            int offsetHours = digits(value, i + 1, 2);
+            int offsetMinutes = i + 5 == length ? digits(value, i + 3, 2) : 0;
+            if (offsetHours < 0 || offsetHours > 23 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return null;
+            }
+            offset = (value.charAt(i) == '+' ? 1 : -1) * (offsetHours * 3600 + offsetMinutes * 60);
+        } else {
+            return null;
+        }
+        return daysSinceEpoch(year, month, day) * 86400.0 + hour * 3600 + minute * 60 + second - offset + fraction;
+    }
+
+    /*
+    The count digits at offset as a number, -1 if they are not all digits.
+    */
+    private static int digits(String value, int offset, int count) {
+        if (offset + count > value.length()) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = value.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLeapYear(int year) {
+        return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /*
+    Days from 1970-01-01 to the given date of the proleptic Gregorian calendar.
+    */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
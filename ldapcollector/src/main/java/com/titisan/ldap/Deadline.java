@@ -0,0 +1,94 @@
+package com.titisan.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.TimeLimitExceededException;
+
+/**
+ * The time by which a scrape must be over, so that it returns what it has read
+ * before Prometheus gives up on it.
+ *
+ * It bounds the connect of a new connection, the server time limit of each
+ * search and the wait for each entry. Past it, check() throws the
+ * TimeLimitExceededException JNDI throws when the server time limit is
+ * exceeded, so both end the scrape the same way.
+ */
+public final class Deadline {
+    /**
+     * No deadline, a scrape takes as long as the server does.
+     */
+    public static final Deadline NONE = new Deadline(0L, 0L);
+
+    // Time left to write the response once the scrape is over, at most half the request timeout.
+    private static final double RESPONSE_MARGIN_SECONDS = 0.5;
+
+    private final long timeoutMillis;
+    private final long endNanos;
+
+    private Deadline(long timeoutMillis, long endNanos) {
+        this.timeoutMillis = timeoutMillis;
+        this.endNanos = endNanos;
+    }
+
+    /**
+     * A deadline timeoutMillis from now, none if timeoutMillis is not positive.
+     */
+    public static Deadline after(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return NONE;
+        }
+        return new Deadline(timeoutMillis, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /**
+     * The deadline of a scrape starting now, from the configured timeout and the
+     * timeout of the Prometheus request, whichever is shorter. 0 for either means none.
+     */
+    static Deadline forScrape(int configuredSeconds, double requestSeconds) {
+        long timeoutMillis = configuredSeconds > 0 ? configuredSeconds * 1000L : 0L;
+        if (requestSeconds > 0) {
+            double margin = Math.min(RESPONSE_MARGIN_SECONDS, requestSeconds / 2);
+            long requestMillis = Math.max(1L, (long) ((requestSeconds - margin) * 1000));
+            timeoutMillis = timeoutMillis > 0 ? Math.min(timeoutMillis, requestMillis) : requestMillis;
+        }
+        return after(timeoutMillis);
+    }
+
+    boolean isSet() {
+        return timeoutMillis > 0;
+    }
+
+    /**
+     * The whole time the scrape was given, in milliseconds, 0 if none.
+     */
+    long timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * The milliseconds left, 0 once past, Long.MAX_VALUE if none.
+     */
+    long remainingMillis() {
+        if (!isSet()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0L, TimeUnit.NANOSECONDS.toMillis(endNanos - System.nanoTime()));
+    }
+
+    boolean isExpired() {
+        return isSet() && endNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @throws TimeLimitExceededException if the deadline has passed.
+     */
+    void check() throws TimeLimitExceededException {
+        if (isExpired()) {
+            throw exceeded();
+        }
+    }
+
+    TimeLimitExceededException exceeded() {
+        return new TimeLimitExceededException("Scrape deadline of " + timeoutMillis + " ms exceeded");
+    }
+}
@@ -0,0 +1,141 @@
+package com.titisan.ldap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Last known attributes of every scraped entry, for scraping only the entries
+ * changed since the previous scrape.
+ *
+ * Changes are found with the modifyTimestamp of the entries, as set by the
+ * server: an incremental scrape asks for the entries modified at or after the
+ * newest timestamp seen so far, plus the entries without a modifyTimestamp,
+ * which are always fetched. Deleted entries are only noticed by the periodic
+ * full scrape, which replaces the whole state.
+ */
+public class IncrementalState {
+    static final String TIMESTAMP_ATTRIBUTE = "modifyTimestamp";
+
+    private final long fullResyncIntervalMillis;
+    // Relative DN to attributes, without the timestamp, in scrape order.
+    private Map<String, Attributes> entries = new LinkedHashMap<String, Attributes>();
+    private String newestTimestamp;
+    private long lastFullScrapeMillis;
+    private boolean initialized = false;
+
+    /**
+     * @param fullResyncIntervalMillis time between full scrapes, 0 to always scrape everything.
+     */
+    public IncrementalState(long fullResyncIntervalMillis) {
+        this.fullResyncIntervalMillis = fullResyncIntervalMillis;
+    }
+
+    /**
+     * The filter selecting the entries changed since the last scrape, or null
+     * if the next scrape must fetch everything.
+     */
+    synchronized String changesFilter(long now) {
+        if (!initialized || newestTimestamp == null || now - lastFullScrapeMillis >= fullResyncIntervalMillis) {
+            return null;
+        }
+        return "(|(" + TIMESTAMP_ATTRIBUTE + ">=" + newestTimestamp + ")(!(" + TIMESTAMP_ATTRIBUTE + "=*)))";
+    }
+
+    /**
+     * Merge the entries of a successful scrape, replacing everything if it was a full one.
+     */
+    synchronized void apply(Fetch fetch, long now) {
+        if (fetch.full) {
+            entries = fetch.entries;
+            lastFullScrapeMillis = now;
+            initialized = true;
+        } else {
+            entries.putAll(fetch.entries);
+        }
+        if (fetch.newestTimestamp != null && (newestTimestamp == null || fetch.newestTimestamp.compareTo(newestTimestamp) > 0)) {
+            newestTimestamp = fetch.newestTimestamp;
+        }
+    }
+
+    /**
+     * All the known entries, named relative to the base DN.
+     */
+    synchronized NamingEnumeration<SearchResult> results() {
+        List<SearchResult> results = new ArrayList<SearchResult>(entries.size());
+        for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
+            results.add(new SearchResult(entry.getKey(), null, entry.getValue()));
+        }
+        final Iterator<SearchResult> it = results.iterator();
+        return new NamingEnumeration<SearchResult>() {
+            public boolean hasMore() {
+                return it.hasNext();
+            }
+
+            public SearchResult next() {
+                return it.next();
+            }
+
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            public SearchResult nextElement() {
+                if (!it.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return it.next();
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The entries fetched by one scrape, possibly from several threads.
+     */
+    static class Fetch {
+        final boolean full;
+        private final boolean keepTimestamp;
+        private final Map<String, Attributes> entries = new LinkedHashMap<String, Attributes>();
+        private String newestTimestamp;
+
+        /**
+         * @param keepTimestamp whether the timestamp was asked for by the config, and not only to find the changes.
+         */
+        Fetch(boolean full, boolean keepTimestamp) {
+            this.full = full;
+            this.keepTimestamp = keepTimestamp;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void add(String dn, Attributes attrs) throws NamingException {
+            // Unless configured, not a metric, and entry names depend on the number of attributes.
+            Attribute timestamp = keepTimestamp ? attrs.get(TIMESTAMP_ATTRIBUTE) : attrs.remove(TIMESTAMP_ATTRIBUTE);
+            if (timestamp != null) {
+                String value = (String) timestamp.get();
+                if (newestTimestamp == null || value.compareTo(newestTimestamp) > 0) {
+                    newestTimestamp = value;
+                }
+            }
+            entries.put(dn, attrs);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.titisan.ldap;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * Scraper backend on JNDI, searching on the connections of an LdapConnectionPool.
+ *
+ * The deadline is sent as the server time limit of each search, which JNDI
+ * rounds up to the second. The wait for each response is bounded by the read
+ * timeout of the connection, see LdapConnectionPool.
+ */
+public class JndiScraperBackend implements ScraperBackend {
+    private static final Logger logger = Logger.getLogger(JndiScraperBackend.class.getName());
+
+    private final LdapConnectionPool connectionPool;
+
+    public JndiScraperBackend(LdapConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    LdapConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /*
+    Run a search on a pooled connection, following the result pages if paging is enabled.
+    */
+    public void search(String baseDn, int scope, String filter, String[] attributes, int pageSize, Deadline deadline, ResultHandler handler) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(scope);
+        ctls.setReturningAttributes(attributes);
+        LdapContext dirConn = connectionPool.borrow(deadline);
+        try {
+            NamingEnumeration<SearchResult> searchResult;
+            try {
+                searchResult = search(dirConn, baseDn, filter, ctls, pageSize, null, deadline);
+            } catch (NamingException e) {
+                // JNDI does not always report a closed connection as a CommunicationException.
+                if (!(e instanceof CommunicationException) && (deadline.isExpired() || connectionPool.isAlive(dirConn))) {
+                    throw e;
+                }
+                // The pooled connection was dropped by the server, retry once on a new one.
+                logger.log(Level.FINE, "Pooled LDAP connection failed, reconnecting: " + e);
+                connectionPool.invalidate(dirConn);
+                dirConn = null;
+                dirConn = connectionPool.borrow(deadline);
+                searchResult = search(dirConn, baseDn, filter, ctls, pageSize, null, deadline);
+            }
+            while (true) {
+                // Each page is handed to the receiver as soon as it arrives.
+                handler.handle(searchResult);
+                searchResult.close();
+                byte[] cookie = pageSize > 0 ? getPagedResultsCookie(dirConn) : null;
+                if (cookie == null || cookie.length == 0) {
+                    break;
+                }
+                searchResult = search(dirConn, baseDn, filter, ctls, pageSize, cookie, deadline);
+            }
+        } catch (CommunicationException e) {
+            if (dirConn != null) {
+                connectionPool.invalidate(dirConn);
+                dirConn = null;
+            }
+            throw e;
+        } catch (NamingException e) {
+            if (dirConn != null && deadline.isExpired()) {
+                // Abandoned at the deadline, the server may still be sending the results.
+                connectionPool.discard(dirConn);
+                dirConn = null;
+            }
+            throw e;
+        } finally {
+            if (dirConn != null) {
+                if (pageSize > 0) {
+                    dirConn.setRequestControls(null);
+                }
+                connectionPool.release(dirConn);
+            }
+        }
+    }
+
+    /*
+    JNDI waits for each response before sending the next request, so the reads
+    follow one another on the connection.
+    */
+    public void readEntries(List<String> dns, String filter, String[] attributes, Deadline deadline, List<ResultHandler> handlers) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        ctls.setReturningAttributes(attributes);
+        LdapContext dirConn = connectionPool.borrow(deadline);
+        try {
+            // Retried like a search, as long as no handler was called.
+            boolean retryable = true;
+            for (int i = 0; i < dns.size(); i++) {
+                NamingEnumeration<SearchResult> searchResult;
+                try {
+                    setTimeLimit(ctls, deadline);
+                    searchResult = dirConn.search(dns.get(i), filter, ctls);
+                } catch (NameNotFoundException e) {
+                    logger.log(Level.FINE, "Entry " + dns.get(i) + " does not exist");
+                    continue;
+                } catch (NamingException e) {
+                    if (!retryable || !(e instanceof CommunicationException) && (deadline.isExpired() || connectionPool.isAlive(dirConn))) {
+                        throw e;
+                    }
+                    // The pooled connection was dropped by the server, read the entry again on a new one.
+                    logger.log(Level.FINE, "Pooled LDAP connection failed, reconnecting: " + e);
+                    retryable = false;
+                    connectionPool.invalidate(dirConn);
+                    dirConn = null;
+                    dirConn = connectionPool.borrow(deadline);
+                    i--;
+                    continue;
+                }
+                retryable = false;
+                try {
+                    handlers.get(i).handle(searchResult);
+                } finally {
+                    searchResult.close();
+                }
+            }
+        } catch (CommunicationException e) {
+            if (dirConn != null) {
+                connectionPool.invalidate(dirConn);
+                dirConn = null;
+            }
+            throw e;
+        } catch (NamingException e) {
+            if (dirConn != null && deadline.isExpired()) {
+                connectionPool.discard(dirConn);
+                dirConn = null;
+            }
+            throw e;
+        } finally {
+            if (dirConn != null) {
+                connectionPool.release(dirConn);
+            }
+        }
+    }
+
+    private static NamingEnumeration<SearchResult> search(LdapContext dirConn, String baseDn, String filter, SearchControls ctls, int pageSize, byte[] cookie, Deadline deadline) throws NamingException {
+        setTimeLimit(ctls, deadline);
+        if (pageSize > 0) {
+            try {
+                // Not critical: servers without paging support return everything at once.
+                dirConn.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL) });
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to encode paged results control", e);
+            }
+        }
+        return dirConn.search(baseDn, filter, ctls);
+    }
+
+    /*
+    Ask the server to stop the search at the deadline, 0 being no limit for JNDI.
+    */
+    private static void setTimeLimit(SearchControls ctls, Deadline deadline) throws NamingException {
+        if (deadline.isSet()) {
+            deadline.check();
+            ctls.setTimeLimit((int) Math.max(1L, Math.min(Integer.MAX_VALUE, deadline.remainingMillis())));
+        }
+    }
+
+    private static byte[] getPagedResultsCookie(LdapContext dirConn) throws NamingException {
+        Control[] controls = dirConn.getResponseControls();
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) control).getCookie();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The connection pool is not owned, it is left open.
+     */
+    public void close() {
+    }
+}
@@ -5,24 +5,50 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import javax.management.MalformedObjectNameException;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
 
 import org.yaml.snakeyaml.Yaml;
 import static java.lang.String.format;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
 
 public class LdapCollector extends Collector implements Collector.Describable {
     static final Counter configReloadSuccess = Counter.build()
@@ -33,6 +59,47 @@ public class LdapCollector extends Collector implements Collector.Describable {
       .name("ldapexporter_config_reload_failure_total")
       .help("Number of times configuration have failed to be reloaded.").register();
 
+    static final Histogram configReloadDuration = Histogram.build()
+      .name("ldapexporter_config_reload_duration_seconds")
+      .help("Time taken to parse and compile a reloaded configuration, in seconds.").register();
+
+    static final Histogram scrapePhaseDuration = Histogram.build()
+      .name("ldapexporter_scrape_phase_duration_seconds")
+      .help("Time spent in each phase of a scrape, in seconds. Phases running on several threads are summed.")
+      .labelNames("phase").register();
+
+    static final Counter entriesScraped = Counter.build()
+      .name("ldapexporter_entries_scraped_total")
+      .help("Number of LDAP entries returned by the scrape searches.").register();
+
+    static final Counter attributesScraped = Counter.build()
+      .name("ldapexporter_attributes_scraped_total")
+      .help("Number of LDAP attributes returned by the scrape searches.").register();
+
+    static final Counter attributesNonNumeric = Counter.build()
+      .name("ldapexporter_attributes_non_numeric_total")
+      .help("Number of LDAP attributes skipped because their value is not a number.").register();
+
+    static final Counter samplesEmitted = Counter.build()
+      .name("ldapexporter_samples_emitted_total")
+      .help("Number of samples produced by scrapes.").register();
+
+    static final Counter familiesEmitted = Counter.build()
+      .name("ldapexporter_metric_families_emitted_total")
+      .help("Number of metric families produced by scrapes.").register();
+
+    static final Counter seriesDropped = Counter.build()
+      .name("ldapexporter_series_dropped_total")
+      .help("Number of samples dropped by maxSeries or maxSeriesPerFamily, by family, \"\" for the families without any sample kept.")
+      .labelNames("family").register();
+    static final Counter probesRejected = Counter.build()
+      .name("ldapexporter_probes_rejected_total")
+      .help("Number of probes refused because too many were running, in total or for their target.").register();
+
+    static final Counter collectCoalesced = Counter.build()
+      .name("ldapexporter_collect_coalesced_total")
+      .help("Number of collects served the result of a scrape already in progress instead of scraping.").register();
+
     private static final Logger LOGGER = Logger.getLogger(LdapCollector.class.getName());
 
     private static class Rule {
@@ -45,6 +112,70 @@ public class LdapCollector extends Collector implements Collector.Describable {
       Boolean continue_next = false;
       ArrayList<String> labelNames;
       ArrayList<String> labelValues;
+      // Profile of this rule since the config was loaded.
+      final LongAdder tested = new LongAdder();
+      final LongAdder matched = new LongAdder();
+      final LongAdder valueFailures = new LongAdder();
+      final LongAdder nanos = new LongAdder();
+    }
+
+    /**
+     * The samples the rules produce for an entry name, minus the scraped value.
+     */
+    private static class SeriesTemplate {
+      static class Output {
+        final String name;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        final String help;
+        final Type type;
+        final Double fixedValue;
+        final double valueFactor;
+        final SampleFamilies.Series series;
+
+        Output(String name, List<String> labelNames, List<String> labelValues, String help, Type type, Double fixedValue, double valueFactor) {
+          this.name = name;
+          this.labelNames = labelNames;
+          this.labelValues = labelValues;
+          this.series = new SampleFamilies.Series(name, labelNames, labelValues);
+          this.help = help;
+          this.type = type;
+          this.fixedValue = fixedValue;
+          this.valueFactor = valueFactor;
+        }
+      }
+
+      // The help text depends on it, so a hit must match it too.
+      final String attrDescription;
+      final List<Output> outputs;
+
+      SeriesTemplate(String attrDescription, List<Output> outputs) {
+        this.attrDescription = attrDescription;
+        this.outputs = outputs;
+      }
+    }
+
+    /**
+     * Least recently used cache of series templates by entry name, shared by all scrapes.
+     */
+    private static class SeriesCache {
+      private final LinkedHashMap<String, SeriesTemplate> templates;
+
+      SeriesCache(final int maxSize) {
+        templates = new LinkedHashMap<String, SeriesTemplate>(16, 0.75f, true) {
+          protected boolean removeEldestEntry(Map.Entry<String, SeriesTemplate> eldest) {
+            return size() > maxSize;
+          }
+        };
+      }
+
+      synchronized SeriesTemplate get(String entryName) {
+        return templates.get(entryName);
+      }
+
+      synchronized void put(String entryName, SeriesTemplate template) {
+        templates.put(entryName, template);
+      }
     }
 
     private static class Config {
@@ -53,17 +184,59 @@ public class LdapCollector extends Collector implements Collector.Describable {
       String username = "";
       String password = "";
       String baseDN = "cn=Monitor"; //default baseDN
+      List<String> targetEntryDNs = new ArrayList<String>();
       boolean lowercaseOutputName;
       boolean lowercaseOutputLabelNames;
       List<String> whitelistEntryNames = new ArrayList<String>();
       List<String> blacklistEntryNames = new ArrayList<String>();
       List<String> extraAttrsToReturn = new ArrayList<String>();
+      Integer connectionPoolMaxIdle = 2;
+      Integer connectionIdleTimeoutSeconds = 300;
+      Integer scrapeIntervalSeconds = 0;
+      Integer scrapeTimeoutSeconds = 0;
+      Integer pageSize = 0;
+      Integer parallelScrapeThreads = 0;
       ArrayList<Rule> rules = new ArrayList<Rule>();
+      RuleIndex ruleIndex;
+      QueryPlan queryPlan;
+      Integer seriesCacheSize = 10000;
+      Integer maxSeries = 0;
+      Integer maxSeriesPerFamily = 0;
+      AttributeDecoders attributeDecoders = AttributeDecoders.DEFAULTS;
+      SeriesCache seriesCache;
+      boolean incrementalScrape = false;
+      Integer fullResyncIntervalSeconds = 300;
+      IncrementalState incrementalState;
+      boolean persistentSearch = false;
+      Integer expositionCacheSeconds = 0;
+      String backend = "jndi";
+      String httpExecutor = "bounded";
+      Integer httpThreads = 5;
+      Integer httpQueueSize = 100;
+      Map<String, Config> modules = new HashMap<String, Config>();
+      Integer probeMaxConcurrent = 16;
+      Integer probeMaxConcurrentPerTarget = 2;
+      // The targets a module may probe, any target if null and the module has no credentials.
+      List<Pattern> probeTargets;
       long lastUpdate = 0L;
     }
 
-    private Config config;
+    // Replaced as a whole on reload, a Config is never modified once published.
+    private final AtomicReference<Config> config = new AtomicReference<Config>();
     private File configFile;
+    // Serializes the reloads. No scrape takes it, they keep the config they started with.
+    private final Object reloadLock = new Object();
+    // Null when the config file is checked on every scrape instead.
+    private volatile WatchService configWatcher;
+    private LdapConnectionPool connectionPool;
+    private UnboundIdScraperBackend unboundIdBackend;
+    private ExecutorService scrapeExecutor;
+    private int scrapeExecutorThreads;
+    private PersistentSearch persistentSearch;
+    private Config persistentSearchConfig;
+    private final Map<String, ProbeTarget> probeTargets = new HashMap<String, ProbeTarget>();
+    // Running probes over all targets, kept across reloads so that they count against the new limit.
+    private final AtomicInteger runningProbes = new AtomicInteger();
     private long createTimeNanoSecs = System.nanoTime();
 
     public LdapCollector(File in) throws IOException, MalformedObjectNameException {
@@ -71,8 +244,9 @@ public class LdapCollector extends Collector implements Collector.Describable {
         FileReader F_reader = null;
         try {
           F_reader = new FileReader(in); 
-          config = loadConfig((Map<String, Object>) new Yaml().load(F_reader));
-          config.lastUpdate = configFile.lastModified();
+          Config cfg = loadConfig((Map<String, Object>) new Yaml().load(F_reader));
+          cfg.lastUpdate = configFile.lastModified();
+          config.set(cfg);
         } catch (IOException  e) {
           LOGGER.severe("Configuration load failed: " + e.toString());
         } catch (MalformedObjectNameException e) {
@@ -83,31 +257,92 @@ public class LdapCollector extends Collector implements Collector.Describable {
             F_reader.close();
           }
         }
+        startConfigWatcher();
     }
 
     public LdapCollector(String yamlConfig) throws MalformedObjectNameException {
-        config = loadConfig((Map<String, Object>)new Yaml().load(yamlConfig));
+        config.set(loadConfig((Map<String, Object>)new Yaml().load(yamlConfig)));
     }
 
-    private void reloadConfig() {
+    /**
+     * Reload the config in the background whenever the file changes, so that
+     * scrapes neither check the file nor wait for the new config to compile.
+     */
+    private void startConfigWatcher() {
+      final Path dir = configFile.getAbsoluteFile().getParentFile().toPath();
+      final WatchService watchService;
       try {
-        FileReader fr = new FileReader(configFile);
+        watchService = dir.getFileSystem().newWatchService();
+        // Editors and Kubernetes config maps replace the file rather than write it, watch the directory.
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      } catch (IOException e) {
+        LOGGER.warning("Unable to watch " + dir + ", checking the configuration file on every scrape: " + e.toString());
+        return;
+      }
+      configWatcher = watchService;
+      Thread watcher = new Thread(new Runnable() {
+        public void run() {
+          try {
+            while (true) {
+              WatchKey key = watchService.take();
+              // A save is often several events, let it complete before reading the file.
+              Thread.sleep(100);
+              key.pollEvents();
+              boolean valid = key.reset();
+              Config cfg = config.get();
+              if (cfg == null || configFile.lastModified() != cfg.lastUpdate) {
+                LOGGER.fine("Configuration file changed, reloading...");
+                reloadConfig();
+              }
+              if (!valid) {
+                LOGGER.warning("Configuration directory " + dir + " is no longer watched, checking the configuration file on every scrape");
+                configWatcher = null;
+                watchService.close();
+                return;
+              }
+            }
+          } catch (InterruptedException e) {
+            configWatcher = null;
+          } catch (ClosedWatchServiceException e) {
+            configWatcher = null;
+          } catch (IOException e) {
+            configWatcher = null;
+          }
+        }
+      }, "ldapexporter-config-watcher");
+      watcher.setDaemon(true);
+      watcher.start();
+    }
 
+    /**
+     * Build the new config without holding the collector lock, and publish it
+     * once complete.
+     */
+    private void reloadConfig() {
+      synchronized (reloadLock) {
+        Histogram.Timer timer = configReloadDuration.startTimer();
         try {
-          Map<String, Object> newYamlConfig = (Map<String, Object>)new Yaml().load(fr);
-          config = loadConfig(newYamlConfig);
-          config.lastUpdate = configFile.lastModified();
-          configReloadSuccess.inc();
-        } catch (Exception e) {
+          FileReader fr = new FileReader(configFile);
+
+          try {
+            Map<String, Object> newYamlConfig = (Map<String, Object>)new Yaml().load(fr);
+            Config cfg = loadConfig(newYamlConfig);
+            cfg.lastUpdate = configFile.lastModified();
+            config.set(cfg);
+            configReloadSuccess.inc();
+          } catch (Exception e) {
+            LOGGER.severe("Configuration reload failed: " + e.toString());
+            configReloadFailure.inc();
+          } finally {
+            fr.close();
+          }
+
+        } catch (IOException e) {
           LOGGER.severe("Configuration reload failed: " + e.toString());
           configReloadFailure.inc();
         } finally {
-          fr.close();
+          timer.observeDuration();
         }
-
-      } catch (IOException e) {
-        LOGGER.severe("Configuration reload failed: " + e.toString());
-        configReloadFailure.inc();
       }
     }
 
@@ -151,6 +386,126 @@ public class LdapCollector extends Collector implements Collector.Describable {
           cfg.lowercaseOutputLabelNames = (Boolean)yamlConfig.get("lowercaseOutputLabelNames");
         }
 
+        if (yamlConfig.containsKey("connectionPoolMaxIdle")) {
+          cfg.connectionPoolMaxIdle = (Integer)yamlConfig.get("connectionPoolMaxIdle");
+        }
+
+        if (yamlConfig.containsKey("connectionIdleTimeoutSeconds")) {
+          cfg.connectionIdleTimeoutSeconds = (Integer)yamlConfig.get("connectionIdleTimeoutSeconds");
+        }
+
+        if (yamlConfig.containsKey("scrapeIntervalSeconds")) {
+          cfg.scrapeIntervalSeconds = (Integer)yamlConfig.get("scrapeIntervalSeconds");
+        }
+
+        if (yamlConfig.containsKey("scrapeTimeoutSeconds")) {
+          cfg.scrapeTimeoutSeconds = (Integer)yamlConfig.get("scrapeTimeoutSeconds");
+        }
+
+        if (yamlConfig.containsKey("pageSize")) {
+          cfg.pageSize = (Integer)yamlConfig.get("pageSize");
+        }
+
+        if (yamlConfig.containsKey("parallelScrapeThreads")) {
+          cfg.parallelScrapeThreads = (Integer)yamlConfig.get("parallelScrapeThreads");
+        }
+
+        if (yamlConfig.containsKey("attributeDecoders")) {
+          cfg.attributeDecoders = new AttributeDecoders((Map<String, String>) yamlConfig.get("attributeDecoders"));
+        }
+
+        if (yamlConfig.containsKey("seriesCacheSize")) {
+          cfg.seriesCacheSize = (Integer)yamlConfig.get("seriesCacheSize");
+        }
+
+        if (yamlConfig.containsKey("maxSeries")) {
+          cfg.maxSeries = (Integer)yamlConfig.get("maxSeries");
+        }
+
+        if (yamlConfig.containsKey("maxSeriesPerFamily")) {
+          cfg.maxSeriesPerFamily = (Integer)yamlConfig.get("maxSeriesPerFamily");
+        }
+
+        if (yamlConfig.containsKey("incrementalScrape")) {
+          cfg.incrementalScrape = (Boolean)yamlConfig.get("incrementalScrape");
+        }
+
+        if (yamlConfig.containsKey("fullResyncIntervalSeconds")) {
+          cfg.fullResyncIntervalSeconds = (Integer)yamlConfig.get("fullResyncIntervalSeconds");
+        }
+
+        if (yamlConfig.containsKey("persistentSearch")) {
+          cfg.persistentSearch = (Boolean)yamlConfig.get("persistentSearch");
+        }
+
+        if (yamlConfig.containsKey("expositionCacheSeconds")) {
+          cfg.expositionCacheSeconds = (Integer)yamlConfig.get("expositionCacheSeconds");
+        }
+
+        if (yamlConfig.containsKey("backend")) {
+          cfg.backend = (String)yamlConfig.get("backend");
+          if (!"jndi".equals(cfg.backend) && !"unboundid".equals(cfg.backend)) {
+            throw new IllegalArgumentException("backend must be jndi or unboundid, got " + cfg.backend);
+          }
+        }
+
+        if (yamlConfig.containsKey("httpExecutor")) {
+          cfg.httpExecutor = (String)yamlConfig.get("httpExecutor");
+          if (!"bounded".equals(cfg.httpExecutor) && !"virtual".equals(cfg.httpExecutor)) {
+            throw new IllegalArgumentException("httpExecutor must be bounded or virtual, got " + cfg.httpExecutor);
+          }
+        }
+
+        if (yamlConfig.containsKey("httpThreads")) {
+          cfg.httpThreads = (Integer)yamlConfig.get("httpThreads");
+          if (cfg.httpThreads < 1) {
+            throw new IllegalArgumentException("httpThreads must be at least 1, got " + cfg.httpThreads);
+          }
+        }
+
+        if (yamlConfig.containsKey("httpQueueSize")) {
+          cfg.httpQueueSize = (Integer)yamlConfig.get("httpQueueSize");
+        }
+
+        if (yamlConfig.containsKey("probeMaxConcurrent")) {
+          cfg.probeMaxConcurrent = (Integer)yamlConfig.get("probeMaxConcurrent");
+        }
+
+        if (yamlConfig.containsKey("probeMaxConcurrentPerTarget")) {
+          cfg.probeMaxConcurrentPerTarget = (Integer)yamlConfig.get("probeMaxConcurrentPerTarget");
+        }
+
+        if (yamlConfig.containsKey("probeTargets")) {
+          cfg.probeTargets = new ArrayList<Pattern>();
+          for (String target : (List<String>) yamlConfig.get("probeTargets")) {
+            try {
+              cfg.probeTargets.add(Pattern.compile(target));
+            } catch (PatternSyntaxException e) {
+              throw new IllegalArgumentException("Invalid probeTargets pattern " + target, e);
+            }
+          }
+        }
+
+        if (yamlConfig.containsKey("modules")) {
+          Map<String, Map<String, Object>> modules = (Map<String, Map<String, Object>>) yamlConfig.get("modules");
+          for (Map.Entry<String, Map<String, Object>> module : modules.entrySet()) {
+            if (module.getValue() != null && module.getValue().containsKey("modules")) {
+              throw new IllegalArgumentException("Modules cannot have modules: " + module.getKey());
+            }
+            // Each module is a complete config, compiled once for all the targets probed with it.
+            cfg.modules.put(module.getKey(), loadConfig(module.getValue()));
+          }
+        }
+
+        if (yamlConfig.containsKey("targetEntryDNs")) {
+          for (String dn : (List<String>) yamlConfig.get("targetEntryDNs")) {
+            if (LdapScraper.relativeDn(dn, cfg.baseDN) == null) {
+              throw new IllegalArgumentException("targetEntryDNs must be under the base DN " + cfg.baseDN + ": " + dn);
+            }
+            cfg.targetEntryDNs.add(dn);
+          }
+        }
+
         if (yamlConfig.containsKey("whitelistEntryNames")) {
           List<String> names = (List<String>) yamlConfig.get("whitelistEntryNames");
           for(String name : names) {
@@ -237,39 +592,46 @@ public class LdapCollector extends Collector implements Collector.Describable {
           cfg.rules.add(new Rule());
         }
 
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (Rule rule : cfg.rules) {
+          patterns.add(rule.pattern);
+        }
+        cfg.ruleIndex = new RuleIndex(patterns);
+        cfg.queryPlan = new QueryPlan(patterns, cfg.whitelistEntryNames, cfg.blacklistEntryNames, cfg.extraAttrsToReturn);
+        // A new cache for every config, reloading drops the old templates.
+        if (cfg.seriesCacheSize > 0) {
+          cfg.seriesCache = new SeriesCache(cfg.seriesCacheSize);
+        }
+        // Likewise, the first scrape with a new config fetches everything.
+        if (cfg.incrementalScrape) {
+          cfg.incrementalState = new IncrementalState(cfg.fullResyncIntervalSeconds * 1000L);
+        }
+
         return cfg;
 
     }
 
     class Receiver implements LdapScraper.LdapReceiver {
-      Map<String, MetricFamilySamples> metricFamilySamplesMap =
-        new HashMap<String, MetricFamilySamples>();
-
-      private final Pattern unsafeChars = Pattern.compile("[^a-zA-Z0-9:_]");
-      private final Pattern multipleUnderscores = Pattern.compile("__+");
-      private final Pattern cnequals = Pattern.compile(",*cn=");
-
-      private String safeName(String s) {
-        // Change invalid chars to underscore, and merge underscores.
-        return multipleUnderscores.matcher(unsafeChars.matcher(cnequals.matcher(s).replaceAll("_")).replaceAll("_")).replaceAll("_");
-      }
+      // LdapScraper.LdapReceiver is called by one thread at a time,
+      // so there's no race here.
+      final SampleFamilies families = new SampleFamilies();
+      // Samples dropped by the series limits by family, added to seriesDropped once the scrape ends.
+      private final Map<String, long[]> dropped = new HashMap<String, long[]>();
+      private final BitSet candidateRules = new BitSet();
+      // The config this scrape started with, a concurrent reload does not affect it.
+      private final Config config;
+      // Set once the scrape is over, searches abandoned at the deadline may still be reading entries.
+      private boolean closed;
 
-      void addSample(MetricFamilySamples.Sample sample, Type type, String help) {
-        MetricFamilySamples mfs = metricFamilySamplesMap.get(sample.name);
-        if (mfs == null) {
-          // LdapScraper.LdapReceiver is only called from one thread,
-          // so there's no race here.
-          mfs = new MetricFamilySamples(sample.name, type, help, new ArrayList<MetricFamilySamples.Sample>());
-          metricFamilySamplesMap.put(sample.name, mfs);
-        }
-        mfs.samples.add(sample);
+      Receiver(Config config) {
+        this.config = config;
       }
 
-      private void defaultExport(
+      private SeriesTemplate.Output defaultExport(
           String entryName,
-          String attrName,
           String help,
-          Number value,
+          Double fixedValue,
+          double valueFactor,
           Type type) {
           
         String fullname = safeName(entryName);
@@ -277,11 +639,7 @@ public class LdapCollector extends Collector implements Collector.Describable {
         if (config.lowercaseOutputName) {
           fullname = fullname.toLowerCase();
         }
-         // Add to samples.
-         LOGGER.fine("add metric sample, Name: " + fullname + 
-         " Value: " + value.doubleValue() + 
-         " help: " + help);
-         addSample(new MetricFamilySamples.Sample(fullname, new ArrayList<String>(), new ArrayList<String>(), value.doubleValue()), type, help);
+        return new SeriesTemplate.Output(fullname, new ArrayList<String>(), new ArrayList<String>(), help, type, fixedValue, valueFactor);
       }
 
       public void recordLdapEntry(
@@ -290,140 +648,885 @@ public class LdapCollector extends Collector implements Collector.Describable {
         String attrName,
         String attrDescription) {
 
-        String help = "Metric from " + attrDescription;
-
-        for (Rule rule : config.rules) {
-          Matcher matcher = null;
-          if (rule.pattern != null) {
-            matcher = rule.pattern.matcher(entryName);
-            if (!matcher.matches()) {
-              continue;
-            } 
+        if (closed) {
+          return;
+        }
+        SeriesTemplate template = config.seriesCache == null ? null : config.seriesCache.get(entryName);
+        if (template == null || !template.attrDescription.equals(attrDescription)) {
+          if (config.maxSeries > 0 && families.sampleCount() >= config.maxSeries) {
+            // Full already, the rules are not run to find out which families the entry is in.
+            drop("");
+            return;
+          }
+          template = buildSeriesTemplate(entryName, attrName, attrDescription);
+          if (config.seriesCache != null) {
+            config.seriesCache.put(entryName, template);
           }
+        }
 
-          Number value = Double.valueOf(0.0);
-          if (rule.value != null && !rule.value.isEmpty()) {
-            String val = matcher.replaceAll(rule.value);
+        // Indexed, an iterator per entry is most of what is left to allocate here.
+        for (int i = 0; i < template.outputs.size(); i++) {
+          SeriesTemplate.Output output = template.outputs.get(i);
+          double value = (output.fixedValue != null ? output.fixedValue : counterValue.doubleValue()) * output.valueFactor;
+          // Add to samples.
+          if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("add metric sample, Name: " + output.name + 
+                        " Value: " + value + 
+                        " Labels: " + output.labelNames.toString() +
+                        " Label values: " + output.labelValues.toString() +
+                        " help: " + output.help);
+          }
+          addSample(output, value);
+        }
+      }
 
-            try {
-                counterValue = Double.valueOf(val);
-            } catch (NumberFormatException e) {
-              LOGGER.fine("Unable to parse configured value '" + val + "' to number for entry: " + entryName + "_" + attrName + ": " + counterValue);
-              return;
-            }
+      /*
+      Add the sample unless a series limit is reached. The family is only named in
+      seriesDropped if it has samples, so that dropping does not add series there.
+      */
+      private void addSample(SeriesTemplate.Output output, double value) {
+        if (config.maxSeries > 0 || config.maxSeriesPerFamily > 0) {
+          int familySize = families.size(output.name);
+          if (config.maxSeriesPerFamily > 0 && familySize >= config.maxSeriesPerFamily
+              || config.maxSeries > 0 && families.sampleCount() >= config.maxSeries) {
+            drop(familySize > 0 ? output.name : "");
+            return;
           }
-          value = ((Number)counterValue).doubleValue() * rule.valueFactor;
+        }
+        families.add(output.series, output.type, output.help, value);
+      }
 
-          // If there's no name provided, use default export format.
-          if (rule.name == null) {
-              //LOGGER.fine("No rule name provided, using defaultExport: " + entryName);
-              defaultExport(entryName, attrName, help, value, Type.UNTYPED);
-              if (!rule.continue_next) {
-                return;
-              } else {
+      private void drop(String family) {
+        long[] count = dropped.get(family);
+        if (count == null) {
+          count = new long[1];
+          dropped.put(family, count);
+        }
+        count[0]++;
+      }
+
+      /**
+       * Ignore the entries recorded from now on. LdapScraper records them
+       * synchronized on the receiver, as this is.
+       */
+      synchronized void close() {
+        closed = true;
+      }
+
+      /**
+       * Add the samples dropped by this scrape to ldapexporter_series_dropped_total.
+       */
+      void countDropped() {
+        for (Map.Entry<String, long[]> entry : dropped.entrySet()) {
+          seriesDropped.labels(entry.getKey()).inc(entry.getValue()[0]);
+        }
+        dropped.clear();
+      }
+
+      /**
+       * Run the rules against an entry name and record what they produce,
+       * everything but the value scraped from LDAP.
+       */
+      private SeriesTemplate buildSeriesTemplate(
+        String entryName,
+        String attrName,
+        String attrDescription) {
+
+        List<SeriesTemplate.Output> outputs = new ArrayList<SeriesTemplate.Output>();
+        String help = "Metric from " + attrDescription;
+        // Replaces the scraped value once a rule sets a value.
+        Double fixedValue = null;
+
+        // Only run the rules whose literal prefix matches, in configuration order.
+        config.ruleIndex.candidates(entryName, candidateRules);
+        for (int ruleIndex = candidateRules.nextSetBit(0); ruleIndex >= 0; ruleIndex = candidateRules.nextSetBit(ruleIndex + 1)) {
+          Rule rule = config.rules.get(ruleIndex);
+          long ruleStart = System.nanoTime();
+          rule.tested.increment();
+          try {
+            Matcher matcher = null;
+            if (rule.pattern != null) {
+              matcher = rule.pattern.matcher(entryName);
+              if (!matcher.matches()) {
                 continue;
+              } 
+            }
+            rule.matched.increment();
+
+            if (rule.value != null && !rule.value.isEmpty()) {
+              String val = matcher.replaceAll(rule.value);
+
+              try {
+                  fixedValue = Double.valueOf(val);
+              } catch (NumberFormatException e) {
+                rule.valueFailures.increment();
+                if (LOGGER.isLoggable(Level.FINE)) {
+                  LOGGER.fine("Unable to parse configured value '" + val + "' to number for entry: " + entryName + "_" + attrName);
+                }
+                break;
               }
+            }
+
+            // If there's no name provided, use default export format.
+            if (rule.name == null) {
+                //LOGGER.fine("No rule name provided, using defaultExport: " + entryName);
+                outputs.add(defaultExport(entryName, help, fixedValue, rule.valueFactor, Type.UNTYPED));
+                if (!rule.continue_next) {
+                  break;
+                } else {
+                  continue;
+                }
 
+            }
+
+            // Matcher is set below here due to validation in the constructor.
+            String name = safeName(matcher.replaceAll(rule.name));
+            if (name.isEmpty()) {
+              break;
+            }
+            if (config.lowercaseOutputName) {
+              name = name.toLowerCase();
+            }
+
+            // Set the help.
+            if (rule.help != null) {
+              help = matcher.replaceAll(rule.help);
+            }
+
+            // Set the labels.
+            ArrayList<String> labelNames = new ArrayList<String>();
+            ArrayList<String> labelValues = new ArrayList<String>();
+            if (rule.labelNames != null) {
+              for (int i = 0; i < rule.labelNames.size(); i++) {
+                final String unsafeLabelName = rule.labelNames.get(i);
+                final String labelValReplacement = rule.labelValues.get(i);
+                try {
+                  String labelName = safeName(matcher.replaceAll(unsafeLabelName));
+                  String labelValue = matcher.replaceAll(labelValReplacement);
+                  if (config.lowercaseOutputLabelNames) {
+                    labelName = labelName.toLowerCase();
+                  }
+                  if (!labelName.isEmpty() && !labelValue.isEmpty()) {
+                    labelNames.add(labelName);
+                    labelValues.add(labelValue);
+                  }
+                } catch (Exception e) {
+                  throw new RuntimeException(
+                    format("Matcher '%s' unable to use: '%s' value: '%s'", matcher, unsafeLabelName, labelValReplacement), e);
+                }
+              }
+            }
+
+            outputs.add(new SeriesTemplate.Output(name, labelNames, labelValues, help, rule.type, fixedValue, rule.valueFactor));
+            if (!rule.continue_next) {
+              break;
+            } else {
+              continue;
+            }
+          } finally {
+            rule.nanos.add(System.nanoTime() - ruleStart);
           }
+        }
+        return new SeriesTemplate(attrDescription, outputs);
+      }
 
-          // Matcher is set below here due to validation in the constructor.
-          String name = safeName(matcher.replaceAll(rule.name));
-          if (name.isEmpty()) {
-            return;
+    }
+
+    /**
+     * Change invalid chars to underscore, and merge underscores. Any run of commas
+     * followed by "cn=" counts as an invalid char.
+     *
+     * Single pass equivalent of replacing ",*cn=", then "[^a-zA-Z0-9:_]" and then "__+"
+     * by "_". Names that are already safe are returned as is, without allocating.
+     */
+    static String safeName(String s) {
+      StringBuilder sb = null;
+      int length = s.length();
+      char last = 0;
+      int i = 0;
+      while (i < length) {
+        char c = s.charAt(i);
+        char out = c;
+        int next = i + 1;
+        if (c == ',' || c == 'c') {
+          int j = i;
+          while (j < length && s.charAt(j) == ',') {
+            j++;
+          }
+          if (s.startsWith("cn=", j)) {
+            out = '_';
+            next = j + 3;
           }
-          if (config.lowercaseOutputName) {
-            name = name.toLowerCase();
+        }
+        if (!((out >= 'a' && out <= 'z') || (out >= 'A' && out <= 'Z') || (out >= '0' && out <= '9') || out == ':' || out == '_')) {
+          out = '_';
+        }
+        boolean skip = out == '_' && last == '_';
+        if (sb == null && (skip || out != c || next != i + 1)) {
+          // First difference with the input, start building a new string.
+          sb = new StringBuilder(length);
+          sb.append(s, 0, i);
+        }
+        if (!skip) {
+          if (sb != null) {
+            sb.append(out);
+          }
+          last = out;
+        }
+        i = next;
+      }
+      return sb == null ? s : sb.toString();
+    }
+
+    /**
+     * Get the connection pool for the given config, replacing the current one
+     * if the LDAP URL or the credentials have changed.
+     */
+    private synchronized LdapConnectionPool getConnectionPool(Config cfg) {
+      if (connectionPool == null || !connectionPool.isFor(cfg.ldapUrl, cfg.username, cfg.password)) {
+        if (connectionPool != null) {
+          LOGGER.fine("LDAP connection settings changed, rebuilding connection pool");
+          connectionPool.close();
+        }
+        connectionPool = new LdapConnectionPool(cfg.ldapUrl, cfg.username, cfg.password,
+            Math.max(cfg.connectionPoolMaxIdle, cfg.parallelScrapeThreads), cfg.connectionIdleTimeoutSeconds * 1000L);
+      }
+      return connectionPool;
+    }
+
+    /**
+     * Connections and running probes of a probed server.
+     */
+    private static class ProbeTarget {
+      final ScraperBackend backend;
+      // Null with the UnboundID backend, which owns its connections.
+      final LdapConnectionPool pool;
+      final String backendName;
+      final Semaphore permits;
+      final int maxConcurrent;
+      long lastUsedMillis;
+
+      ProbeTarget(String target, Config moduleCfg, int maxConcurrent) {
+        int maxIdle = Math.max(moduleCfg.connectionPoolMaxIdle, maxConcurrent);
+        if ("unboundid".equals(moduleCfg.backend)) {
+          try {
+            this.backend = new UnboundIdScraperBackend(target, moduleCfg.username, moduleCfg.password, maxIdle);
+          } catch (NamingException e) {
+            throw new IllegalArgumentException("Invalid target " + target + ": " + e.getMessage(), e);
           }
+          this.pool = null;
+        } else {
+          this.pool = new LdapConnectionPool(target, moduleCfg.username, moduleCfg.password,
+              maxIdle, moduleCfg.connectionIdleTimeoutSeconds * 1000L);
+          this.backend = new JndiScraperBackend(pool);
+        }
+        this.backendName = moduleCfg.backend;
+        this.permits = new Semaphore(maxConcurrent);
+        this.maxConcurrent = maxConcurrent;
+      }
 
-          // Set the help.
-          if (rule.help != null) {
-            help = matcher.replaceAll(rule.help);
+      boolean isFor(String target, Config moduleCfg, int maxConcurrent) {
+        if (this.maxConcurrent != maxConcurrent || !backendName.equals(moduleCfg.backend)) {
+          return false;
+        }
+        return pool != null ? pool.isFor(target, moduleCfg.username, moduleCfg.password)
+            : ((UnboundIdScraperBackend) backend).isFor(target, moduleCfg.username, moduleCfg.password);
+      }
+
+      void close() {
+        if (pool != null) {
+          pool.close();
+        } else {
+          backend.close();
+        }
+      }
+    }
+
+    /**
+     * Scrape target with the config of module.
+     *
+     * @throws IllegalArgumentException if the target is not an LDAP URL, the module does not exist or may not probe the target.
+     * @throws RejectedExecutionException if too many probes are running, in total or for the target.
+     */
+    public List<MetricFamilySamples> probe(String target, String module) {
+      return probe(target, module, 0);
+    }
+
+    /**
+     * Scrape target with the config of module, within the scrape timeout of the
+     * Prometheus request, 0 if unknown, or that of the module if shorter.
+     */
+    public List<MetricFamilySamples> probe(String target, String module, double requestTimeoutSeconds) {
+      Config cfg = config.get();
+      if (module == null) {
+        throw new IllegalArgumentException("module is required");
+      }
+      Config moduleCfg = cfg.modules.get(module);
+      if (moduleCfg == null) {
+        throw new IllegalArgumentException("Unknown module " + module);
+      }
+      if (target == null || !(target.startsWith("ldap://") || target.startsWith("ldaps://"))) {
+        throw new IllegalArgumentException("target must be an ldap:// or ldaps:// URL, got " + target);
+      }
+      checkProbeTarget(target, module, moduleCfg);
+      if (runningProbes.incrementAndGet() > cfg.probeMaxConcurrent) {
+        runningProbes.decrementAndGet();
+        probesRejected.inc();
+        throw new RejectedExecutionException("Too many probes running");
+      }
+      try {
+        ProbeTarget probeTarget = getProbeTarget(target, module, moduleCfg, cfg.probeMaxConcurrentPerTarget);
+        if (!probeTarget.permits.tryAcquire()) {
+          probesRejected.inc();
+          throw new RejectedExecutionException("Too many probes running for " + target);
+        }
+        try {
+          Deadline deadline = Deadline.forScrape(moduleCfg.scrapeTimeoutSeconds, requestTimeoutSeconds);
+          return scrape(moduleCfg, probeTarget.backend, deadline).toMetricFamilySamples();
+        } finally {
+          synchronized (this) {
+            probeTarget.lastUsedMillis = System.currentTimeMillis();
           }
+          probeTarget.permits.release();
+        }
+      } finally {
+        runningProbes.decrementAndGet();
+      }
+    }
 
-          // Set the labels.
-          ArrayList<String> labelNames = new ArrayList<String>();
-          ArrayList<String> labelValues = new ArrayList<String>();
-          if (rule.labelNames != null) {
-            for (int i = 0; i < rule.labelNames.size(); i++) {
-              final String unsafeLabelName = rule.labelNames.get(i);
-              final String labelValReplacement = rule.labelValues.get(i);
-              try {
-                String labelName = safeName(matcher.replaceAll(unsafeLabelName));
-                String labelValue = matcher.replaceAll(labelValReplacement);
-                if (config.lowercaseOutputLabelNames) {
-                  labelName = labelName.toLowerCase();
-                }
-                if (!labelName.isEmpty() && !labelValue.isEmpty()) {
-                  labelNames.add(labelName);
-                  labelValues.add(labelValue);
-                }
-              } catch (Exception e) {
-                throw new RuntimeException(
-                  format("Matcher '%s' unable to use: '%s' value: '%s'", matcher, unsafeLabelName, labelValReplacement), e);
-              }
+    /**
+     * Refuse the targets not in the probeTargets of the module, and every target
+     * of a module that binds without them, so that its credentials are only sent
+     * to the servers it was configured for.
+     */
+    private static void checkProbeTarget(String target, String module, Config moduleCfg) {
+      if (moduleCfg.probeTargets == null) {
+        if (moduleCfg.username != null && moduleCfg.username.length() != 0) {
+          throw new IllegalArgumentException("Module " + module + " has credentials but no probeTargets");
+        }
+        return;
+      }
+      for (Pattern pattern : moduleCfg.probeTargets) {
+        if (pattern.matcher(target).matches()) {
+          return;
+        }
+      }
+      throw new IllegalArgumentException("Module " + module + " may not probe " + target);
+    }
+
+    /**
+     * Get the connections of a probed server, closing those of the servers not
+     * probed for connectionIdleTimeoutSeconds.
+     */
+    private synchronized ProbeTarget getProbeTarget(String target, String module, Config moduleCfg, int maxConcurrent) {
+      long now = System.currentTimeMillis();
+      Iterator<Map.Entry<String, ProbeTarget>> it = probeTargets.entrySet().iterator();
+      while (it.hasNext()) {
+        ProbeTarget idle = it.next().getValue();
+        if (now - idle.lastUsedMillis > moduleCfg.connectionIdleTimeoutSeconds * 1000L
+            && idle.permits.availablePermits() == idle.maxConcurrent) {
+          idle.close();
+          it.remove();
+        }
+      }
+      String key = module + " " + target;
+      ProbeTarget probeTarget = probeTargets.get(key);
+      if (probeTarget == null || !probeTarget.isFor(target, moduleCfg, maxConcurrent)) {
+        // Probes still running on a replaced target finish on its connections, which are not closed.
+        probeTarget = new ProbeTarget(target, moduleCfg, maxConcurrent);
+        probeTargets.put(key, probeTarget);
+      }
+      probeTarget.lastUsedMillis = now;
+      return probeTarget;
+    }
+
+    /**
+     * Get the worker pool for parallel subtree scraping, or null if it is disabled.
+     */
+    private synchronized ExecutorService getScrapeExecutor(Config cfg) {
+      if (cfg.parallelScrapeThreads != scrapeExecutorThreads) {
+        if (scrapeExecutor != null) {
+          scrapeExecutor.shutdown();
+          scrapeExecutor = null;
+        }
+        scrapeExecutorThreads = cfg.parallelScrapeThreads;
+        if (scrapeExecutorThreads > 1) {
+          scrapeExecutor = Executors.newFixedThreadPool(scrapeExecutorThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "ldapexporter-scraper-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
             }
+          });
+        }
+      }
+      return scrapeExecutor;
+    }
+
+    /**
+     * Get the scraper backend for the given config, rebuilding the UnboundID
+     * connection pool when the connection settings change.
+     */
+    private synchronized ScraperBackend getScraperBackend(Config cfg) throws NamingException {
+      if (!"unboundid".equals(cfg.backend)) {
+        if (unboundIdBackend != null) {
+          unboundIdBackend.close();
+          unboundIdBackend = null;
+        }
+        return new JndiScraperBackend(getConnectionPool(cfg));
+      }
+      if (unboundIdBackend == null || !unboundIdBackend.isFor(cfg.ldapUrl, cfg.username, cfg.password)) {
+        if (unboundIdBackend != null) {
+          LOGGER.fine("LDAP connection settings changed, rebuilding connection pool");
+          unboundIdBackend.close();
+        }
+        unboundIdBackend = new UnboundIdScraperBackend(cfg.ldapUrl, cfg.username, cfg.password,
+            Math.max(cfg.connectionPoolMaxIdle, cfg.parallelScrapeThreads));
+      }
+      return unboundIdBackend;
+    }
+
+    /**
+     * Get the persistent search for the given config, or null if it is disabled.
+     * A new config starts a new search.
+     */
+    private synchronized PersistentSearch getPersistentSearch(Config cfg) {
+      if (cfg != persistentSearchConfig) {
+        if (persistentSearch != null) {
+          persistentSearch.close();
+          persistentSearch = null;
+        }
+        persistentSearchConfig = cfg;
+        if (cfg.persistentSearch) {
+          persistentSearch = new PersistentSearch(getConnectionPool(cfg), cfg.baseDN,
+              cfg.queryPlan.getFilter(), cfg.queryPlan.getAttributes());
+          persistentSearch.start();
+        }
+      }
+      return persistentSearch;
+    }
+
+    /**
+     * A receiver for the current config, for feeding entries without an LDAP server.
+     */
+    Receiver newReceiver() {
+      return new Receiver(config.get());
+    }
+
+    /**
+     * Result of a background scrape, published atomically for collect() to serve.
+     */
+    private static class Snapshot {
+      final SampleFamilies families;
+      final long timestampMillis;
+
+      Snapshot(SampleFamilies families, long timestampMillis) {
+        this.families = families;
+        this.timestampMillis = timestampMillis;
+      }
+    }
+
+    /**
+     * A scrape in progress, which concurrent collects with the same config wait for.
+     */
+    private static class InFlightScrape {
+      final Config cfg;
+      final CountDownLatch done = new CountDownLatch(1);
+      SampleFamilies families;
+      RuntimeException failure;
+
+      InFlightScrape(Config cfg) {
+        this.cfg = cfg;
+      }
+    }
+
+    private InFlightScrape inFlightScrape;
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+    private volatile long lastSuccessfulRefreshMillis = 0L;
+    private ScheduledExecutorService refresher;
+    private int refresherIntervalSeconds;
+    // Counted down by the first refresh of the current refresher.
+    private volatile CountDownLatch firstRefresh;
+
+    /**
+     * Start, reschedule or stop the background scrape to follow scrapeIntervalSeconds.
+     */
+    private synchronized void updateRefresher(Config cfg) {
+      if (cfg.scrapeIntervalSeconds == refresherIntervalSeconds) {
+        return;
+      }
+      if (refresher != null) {
+        refresher.shutdownNow();
+        refresher = null;
+      }
+      refresherIntervalSeconds = cfg.scrapeIntervalSeconds;
+      if (refresherIntervalSeconds <= 0) {
+        snapshot.set(null);
+        return;
+      }
+      // The first refresh runs at once on the refresher thread, not under this lock, and the requests wait for it.
+      final CountDownLatch refreshed = new CountDownLatch(1);
+      firstRefresh = refreshed;
+      refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "ldapexporter-refresher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      refresher.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            refresh();
+          } finally {
+            refreshed.countDown();
           }
+        }
+      }, 0, refresherIntervalSeconds, TimeUnit.SECONDS);
+    }
 
-          // Add to samples.
-          LOGGER.fine("add metric sample, Name: " + name + 
-                      " Value: " + value.doubleValue() + 
-                      " Labels: " + labelNames.toString() +
-                      " Label values: " + labelValues.toString() +
-                      " help: " + help);
-          addSample(new MetricFamilySamples.Sample(name, labelNames, labelValues, value.doubleValue()), rule.type, help);
-          if (!rule.continue_next) {
-            return;
+    /**
+     * Replace the snapshot with a new scrape if it read every entry. A failed or
+     * partial scrape only replaces the first snapshot: after that the last
+     * complete one is still served, its age and the time of the last successful
+     * refresh telling how stale it is.
+     */
+    private void refresh() {
+      try {
+        Config cfg = config.get();
+        long start = System.currentTimeMillis();
+        SampleFamilies families = scrape(cfg, null, Deadline.forScrape(cfg.scrapeTimeoutSeconds, 0));
+        // Set by scrape() on success, and only by this thread once a snapshot exists.
+        boolean complete = lastSuccessfulRefreshMillis >= start;
+        if (complete || snapshot.get() == null) {
+          snapshot.set(new Snapshot(families, System.currentTimeMillis()));
+        }
+      } catch (RuntimeException e) {
+        // Keep the scheduled task alive, the previous snapshot is still served.
+        LOGGER.severe("Background LDAP scrape failed: " + e.toString());
+      }
+    }
+
+    /**
+     * Wait for the first snapshot of the background scrape, until the deadline at most.
+     */
+    private Snapshot awaitFirstSnapshot(Deadline deadline) {
+      CountDownLatch refreshed = firstRefresh;
+      try {
+        if (refreshed != null) {
+          if (deadline.isSet()) {
+            refreshed.await(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
           } else {
-            continue;
+            refreshed.await();
           }
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-
+      return snapshot.get();
     }
 
     public List<MetricFamilySamples> collect() {
-      if (configFile != null) {
-        long mtime = configFile.lastModified();
-        if (mtime > config.lastUpdate) {
-          LOGGER.fine("Configuration file changed, reloading...");
-          reloadConfig();
+      return collectFamilies().toMetricFamilySamples();
+    }
+
+    /**
+     * What collect() returns, as samples grouped by family that can be written
+     * in the text format without building the MetricFamilySamples.
+     */
+    public SampleFamilies collectFamilies() {
+      return collectFamilies(0);
+    }
+
+    /**
+     * Collect within the scrape timeout of the Prometheus request, from its
+     * X-Prometheus-Scrape-Timeout-Seconds header, 0 if unknown, or within
+     * scrapeTimeoutSeconds if shorter. Snapshots are served as they are.
+     */
+    public SampleFamilies collectFamilies(double requestTimeoutSeconds) {
+      if (configFile != null && configWatcher == null && configFile.lastModified() > config.get().lastUpdate) {
+        synchronized (reloadLock) {
+          // Concurrent collects reload once.
+          if (configFile.lastModified() > config.get().lastUpdate) {
+            LOGGER.fine("Configuration file changed, reloading...");
+            reloadConfig();
+          }
         }
       }
 
-      Receiver receiver = new Receiver();
-      LdapScraper scraper = new LdapScraper(config.ldapUrl, config.username, config.password, config.baseDN, config.whitelistEntryNames, config.blacklistEntryNames, config.extraAttrsToReturn, receiver);
-      long start = System.nanoTime();
-      double error = 0;
-      if ((config.startDelaySeconds > 0) &&
-        ((start - createTimeNanoSecs) / 1000000000L < config.startDelaySeconds)) {
+      // The same config for the whole collect, even if a reload publishes a new one meanwhile.
+      Config cfg = config.get();
+      if ((cfg.startDelaySeconds > 0) &&
+        ((System.nanoTime() - createTimeNanoSecs) / 1000000000L < cfg.startDelaySeconds)) {
         throw new IllegalStateException("LdapCollector waiting for startDelaySeconds");
       }
+
+      updateRefresher(cfg);
+      Deadline deadline = Deadline.forScrape(cfg.scrapeTimeoutSeconds, requestTimeoutSeconds);
+      Snapshot current = snapshot.get();
+      if (current == null && cfg.scrapeIntervalSeconds > 0) {
+        current = awaitFirstSnapshot(deadline);
+      }
+      // The scrape result may be shared, its families are added as they are.
+      SampleFamilies families = new SampleFamilies();
+      if (current == null) {
+        // Without a snapshot by the deadline, this scrape returns at once what it can.
+        families.addAll(coalescedScrape(cfg, deadline));
+        addRuleProfile(cfg, families);
+        return families;
+      }
+
+      families.addAll(current.families);
+      List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample(
+          "ldap_snapshot_age_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.currentTimeMillis() - current.timestampMillis) / 1000.0));
+      families.add(new MetricFamilySamples("ldap_snapshot_age_seconds", Type.GAUGE, "Age of the LDAP scrape results being served, in seconds.", samples));
+
+      samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample(
+          "ldap_last_successful_refresh_timestamp_seconds", new ArrayList<String>(), new ArrayList<String>(), lastSuccessfulRefreshMillis / 1000.0));
+      families.add(new MetricFamilySamples("ldap_last_successful_refresh_timestamp_seconds", Type.GAUGE, "Time of the last successful background LDAP scrape, in unixtime.", samples));
+      addRuleProfile(cfg, families);
+      return families;
+    }
+
+    /**
+     * Export the profile of each rule. It starts over whenever the config is reloaded.
+     */
+    private void addRuleProfile(Config cfg, SampleFamilies families) {
+      List<String> labelNames = Arrays.asList("rule", "pattern");
+      List<MetricFamilySamples.Sample> tested = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> matched = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> valueFailures = new ArrayList<MetricFamilySamples.Sample>();
+      List<MetricFamilySamples.Sample> seconds = new ArrayList<MetricFamilySamples.Sample>();
+      for (int i = 0; i < cfg.rules.size(); i++) {
+        Rule rule = cfg.rules.get(i);
+        List<String> labelValues = Arrays.asList(String.valueOf(i), rule.pattern == null ? "" : rule.pattern.pattern());
+        tested.add(new MetricFamilySamples.Sample("ldapexporter_rule_tested_total", labelNames, labelValues, rule.tested.sum()));
+        matched.add(new MetricFamilySamples.Sample("ldapexporter_rule_matched_total", labelNames, labelValues, rule.matched.sum()));
+        valueFailures.add(new MetricFamilySamples.Sample("ldapexporter_rule_value_failures_total", labelNames, labelValues, rule.valueFailures.sum()));
+        seconds.add(new MetricFamilySamples.Sample("ldapexporter_rule_seconds_total", labelNames, labelValues, rule.nanos.sum() / 1.0E9));
+      }
+      families.add(new MetricFamilySamples("ldapexporter_rule_tested_total", Type.COUNTER, "Number of entry names tested against the rule since the config was loaded.", tested));
+      families.add(new MetricFamilySamples("ldapexporter_rule_matched_total", Type.COUNTER, "Number of entry names the rule matched since the config was loaded.", matched));
+      families.add(new MetricFamilySamples("ldapexporter_rule_value_failures_total", Type.COUNTER, "Number of times the value of the rule was not a number since the config was loaded.", valueFailures));
+      families.add(new MetricFamilySamples("ldapexporter_rule_seconds_total", Type.COUNTER, "Time spent matching the rule and applying its replacements since the config was loaded, in seconds.", seconds));
+    }
+
+    /**
+     * The HTTP executor to serve requests on, "bounded" or "virtual".
+     * The HTTP settings are only read when the server starts.
+     */
+    public String getHttpExecutor() {
+      return config.get().httpExecutor;
+    }
+
+    /**
+     * The number of HTTP requests handled at once.
+     */
+    public int getHttpThreads() {
+      return config.get().httpThreads;
+    }
+
+    /**
+     * The number of HTTP requests allowed to wait for a thread, beyond which they are rejected.
+     */
+    public int getHttpQueueSize() {
+      return config.get().httpQueueSize;
+    }
+
+    /**
+     * How long a rendered exposition may be served to later requests, in milliseconds.
+     */
+    public long getExpositionCacheMillis() {
+      return config.get().expositionCacheSeconds * 1000L;
+    }
+
+    /**
+     * The search filter and attributes the scrapes use, and how the rules shaped them.
+     */
+    public String queryPlan() {
+      return config.get().queryPlan.describe();
+    }
+
+    /**
+     * The rules ranked by the time spent evaluating them since the config was loaded.
+     */
+    public String ruleProfile() {
+      final List<Rule> rules = config.get().rules;
+      List<Integer> ranking = new ArrayList<Integer>();
+      for (int i = 0; i < rules.size(); i++) {
+        ranking.add(i);
+      }
+      Collections.sort(ranking, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Long.compare(rules.get(b).nanos.sum(), rules.get(a).nanos.sum());
+        }
+      });
+      StringBuilder sb = new StringBuilder();
+      sb.append(format("%4s %4s %12s %12s %12s %12s  %s%n", "rank", "rule", "seconds", "tested", "matched", "failures", "pattern"));
+      for (int rank = 0; rank < ranking.size(); rank++) {
+        int i = ranking.get(rank);
+        Rule rule = rules.get(i);
+        sb.append(format("%4d %4d %12.6f %12d %12d %12d  %s%n", rank + 1, i, rule.nanos.sum() / 1.0E9,
+            rule.tested.sum(), rule.matched.sum(), rule.valueFailures.sum(), rule.pattern == null ? "" : rule.pattern.pattern()));
+      }
+      return sb.toString();
+    }
+
+    /**
+     * Scrape, or wait for the scrape already in progress with the same config and
+     * share its result, which must not be modified. The scrape is bounded by the
+     * deadline of the collect starting it, and the wait for it by that of the
+     * collect waiting: past it, the waiting collect returns a partial result
+     * without any entry.
+     */
+    private SampleFamilies coalescedScrape(Config cfg, Deadline deadline) {
+      InFlightScrape flight;
+      boolean leader = false;
+      synchronized (this) {
+        flight = inFlightScrape;
+        if (flight == null || flight.cfg != cfg) {
+          flight = new InFlightScrape(cfg);
+          inFlightScrape = flight;
+          leader = true;
+        }
+      }
+      if (!leader) {
+        collectCoalesced.inc();
+        long start = System.nanoTime();
+        boolean done;
+        boolean interrupted = false;
+        while (true) {
+          try {
+            if (deadline.isSet()) {
+              done = flight.done.await(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+            } else {
+              flight.done.await();
+              done = true;
+            }
+            break;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        if (!done) {
+          LOGGER.warning("LDAP scrape shared with another request still running after " + (System.nanoTime() - start) / 1000000L
+              + " ms, serving no samples");
+          SampleFamilies families = new SampleFamilies();
+          addScrapeStatus(families, start, 0, 1);
+          return families;
+        }
+        if (flight.failure != null) {
+          throw flight.failure;
+        }
+        return flight.families;
+      }
+      try {
+        flight.families = scrape(cfg, null, deadline);
+        return flight.families;
+      } catch (RuntimeException e) {
+        flight.failure = e;
+        throw e;
+      } finally {
+        synchronized (this) {
+          if (inFlightScrape == flight) {
+            inFlightScrape = null;
+          }
+        }
+        flight.done.countDown();
+      }
+    }
+
+    /**
+     * Scrape with the given config, on probeBackend for a probe, else on the
+     * configured server with the configured scrape modes.
+     *
+     * A scrape stopped by the deadline or a failure returns the samples of the
+     * entries read until then, with ldap_scrape_partial set. Only failures
+     * set ldap_scrape_error.
+     */
+    private SampleFamilies scrape(Config cfg, ScraperBackend probeBackend, Deadline deadline) {
+      Receiver receiver = new Receiver(cfg);
+      long start = System.nanoTime();
+      double error = 0;
+      double partial = 0;
       try {
-        scraper.doScrape();
+        LdapScraper scraper;
+        if (probeBackend != null) {
+          // Probes keep no state between scrapes besides the connections.
+          scraper = new LdapScraper(probeBackend, cfg.baseDN, cfg.whitelistEntryNames, cfg.blacklistEntryNames, cfg.extraAttrsToReturn, receiver);
+          scraper.setPageSize(cfg.pageSize);
+          scraper.setAttributeDecoders(cfg.attributeDecoders);
+          scraper.setQueryPlan(cfg.queryPlan);
+          scraper.setTargetEntryDNs(cfg.targetEntryDNs);
+          scraper.setDeadline(deadline);
+          scraper.doScrape();
+        } else {
+          scraper = new LdapScraper(getScraperBackend(cfg), cfg.baseDN, cfg.whitelistEntryNames, cfg.blacklistEntryNames, cfg.extraAttrsToReturn, receiver);
+          scraper.setPageSize(cfg.pageSize);
+          scraper.setExecutor(getScrapeExecutor(cfg));
+          scraper.setIncrementalState(cfg.incrementalState);
+          scraper.setPersistentSearch(getPersistentSearch(cfg));
+          scraper.setAttributeDecoders(cfg.attributeDecoders);
+          scraper.setQueryPlan(cfg.queryPlan);
+          scraper.setTargetEntryDNs(cfg.targetEntryDNs);
+          scraper.setDeadline(deadline);
+          scraper.doScrape();
+          lastSuccessfulRefreshMillis = System.currentTimeMillis();
+        }
       } catch (Exception e) {
-        error = 1;
-        StringWriter sw = new StringWriter();
-        e.printStackTrace(new PrintWriter(sw));
-        LOGGER.severe("LDAP scrape failed: " + sw.toString());
+        partial = 1;
+        // The deadline, the server time limit it was sent as, or past it the read timeout of a connection.
+        if (e instanceof TimeLimitExceededException || deadline.isExpired()) {
+          LOGGER.warning("LDAP scrape stopped after " + (System.nanoTime() - start) / 1000000L
+              + " ms, serving the samples read until then: " + e.toString());
+        } else {
+          error = 1;
+          StringWriter sw = new StringWriter();
+          e.printStackTrace(new PrintWriter(sw));
+          LOGGER.severe("LDAP scrape failed: " + sw.toString());
+        }
       }
-      List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>();
-      mfsList.addAll(receiver.metricFamilySamplesMap.values());
+      receiver.close();
+      receiver.countDropped();
+      SampleFamilies families = receiver.families;
+      samplesEmitted.inc(families.sampleCount());
+      familiesEmitted.inc(families.familyCount());
+      addScrapeStatus(families, start, error, partial);
+      return families;
+    }
+
+    /**
+     * Add the duration of a scrape started at startNanos and whether it failed or stopped early.
+     */
+    private static void addScrapeStatus(SampleFamilies families, long startNanos, double error, double partial) {
       List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
-          "ldap_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - start) / 1.0E9));
-      mfsList.add(new MetricFamilySamples("ldap_scrape_duration_seconds", Type.GAUGE, "Time this LDAP scrape took, in seconds.", samples));
+          "ldap_scrape_duration_seconds", new ArrayList<String>(), new ArrayList<String>(), (System.nanoTime() - startNanos) / 1.0E9));
+      families.add(new MetricFamilySamples("ldap_scrape_duration_seconds", Type.GAUGE, "Time this LDAP scrape took, in seconds.", samples));
 
       samples = new ArrayList<MetricFamilySamples.Sample>();
       samples.add(new MetricFamilySamples.Sample(
           "ldap_scrape_error", new ArrayList<String>(), new ArrayList<String>(), error));
-      mfsList.add(new MetricFamilySamples("ldap_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
-      return mfsList;
+      families.add(new MetricFamilySamples("ldap_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", samples));
+
+      samples = new ArrayList<MetricFamilySamples.Sample>();
+      samples.add(new MetricFamilySamples.Sample(
+          "ldap_scrape_partial", new ArrayList<String>(), new ArrayList<String>(), partial));
+      families.add(new MetricFamilySamples("ldap_scrape_partial", Type.GAUGE, "Non-zero if this scrape stopped before reading every entry, at the deadline or on a failure.", samples));
     }
 
     public List<MetricFamilySamples> describe() {
       List<MetricFamilySamples> sampleFamilies = new ArrayList<MetricFamilySamples>();
       sampleFamilies.add(new MetricFamilySamples("ldap_scrape_duration_seconds", Type.GAUGE, "Time this LDAP scrape took, in seconds.", new ArrayList<MetricFamilySamples.Sample>()));
       sampleFamilies.add(new MetricFamilySamples("ldap_scrape_error", Type.GAUGE, "Non-zero if this scrape failed.", new ArrayList<MetricFamilySamples.Sample>()));
+      sampleFamilies.add(new MetricFamilySamples("ldap_scrape_partial", Type.GAUGE, "Non-zero if this scrape stopped before reading every entry, at the deadline or on a failure.", new ArrayList<MetricFamilySamples.Sample>()));
       return sampleFamilies;
     }
 
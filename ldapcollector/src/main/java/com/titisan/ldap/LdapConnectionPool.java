@@ -0,0 +1,275 @@
+package com.titisan.ldap;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * Pool of bound LDAP connections reused across scrapes.
+ *
+ * Connections are opened anonymously and then bound with the configured credentials,
+ * so the connect and the bind can be timed separately. Idle connections are evicted
+ * after idleTimeoutMillis and validated with a root DSE read before being reused if
+ * they have been idle for a while.
+ *
+ * A connection opened for a scrape with a deadline bounds the connect by the
+ * time left, and every response, the bind's included, by the whole scrape
+ * timeout. JNDI fixes the read timeout of a connection when it opens it, so
+ * idle connections are only reused by the scrapes with the same timeout, and
+ * long-lived searches get a connection of their own without any.
+ */
+public class LdapConnectionPool implements Closeable {
+    static final Counter connects = Counter.build()
+      .name("ldapexporter_pool_connects_total")
+      .help("Number of new LDAP connections opened by the connection pool.").register();
+
+    static final Counter reuses = Counter.build()
+      .name("ldapexporter_pool_reuses_total")
+      .help("Number of times an idle pooled LDAP connection has been reused.").register();
+
+    static final Counter evictions = Counter.build()
+      .name("ldapexporter_pool_evictions_total")
+      .help("Number of pooled LDAP connections closed because they were idle, broken or in excess.").register();
+
+    private static final Logger logger = Logger.getLogger(LdapConnectionPool.class.getName());
+
+    // Idle connections older than this are checked with a root DSE read before reuse.
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 60000L;
+    private static final String READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+
+    private static class IdleConnection {
+        final LdapContext ctx;
+        final long idleSince;
+        final long readTimeoutMillis;
+
+        IdleConnection(LdapContext ctx, long idleSince, long readTimeoutMillis) {
+            this.ctx = ctx;
+            this.idleSince = idleSince;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+    }
+
+    private final String ldapUrl;
+    private final String username;
+    private final String password;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+    private boolean closed = false;
+
+    public LdapConnectionPool(String ldapUrl, String username, String password, int maxIdle, long idleTimeoutMillis) {
+        this.ldapUrl = ldapUrl;
+        this.username = username;
+        this.password = password;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Whether this pool connects to the given server with the given credentials.
+     */
+    public boolean isFor(String ldapUrl, String username, String password) {
+        return equal(this.ldapUrl, ldapUrl) && equal(this.username, username) && equal(this.password, password);
+    }
+
+    /**
+     * Get a bound connection, reusing an idle one when possible.
+     */
+    public LdapContext borrow() throws NamingException {
+        return borrow(Deadline.NONE);
+    }
+
+    /**
+     * Get a bound connection for a scrape with this deadline.
+     */
+    public LdapContext borrow(Deadline deadline) throws NamingException {
+        while (true) {
+            deadline.check();
+            IdleConnection candidate;
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("LDAP connection pool is closed");
+                }
+                evictExpired(System.currentTimeMillis());
+                candidate = pollIdle(deadline.timeoutMillis());
+            }
+            if (candidate == null) {
+                return connect(deadline);
+            }
+            if (System.currentTimeMillis() - candidate.idleSince < VALIDATE_AFTER_IDLE_MILLIS || isAlive(candidate.ctx)) {
+                reuses.inc();
+                return candidate.ctx;
+            }
+            evict(candidate.ctx);
+        }
+    }
+
+    /**
+     * Open a bound connection for a long-lived search, such as a persistent
+     * search, outside the pool: it has no read timeout and is never reused.
+     * Give it back with discard().
+     */
+    public LdapContext open() throws NamingException {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("LDAP connection pool is closed");
+            }
+        }
+        return connect(Deadline.NONE);
+    }
+
+    /**
+     * Give back a connection that is still usable.
+     */
+    public void release(LdapContext ctx) {
+        long readTimeoutMillis;
+        try {
+            Object readTimeout = ctx.getEnvironment().get(READ_TIMEOUT);
+            readTimeoutMillis = readTimeout == null ? 0L : Long.parseLong((String) readTimeout);
+        } catch (NamingException e) {
+            evict(ctx);
+            return;
+        }
+        synchronized (this) {
+            if (!closed && idle.size() < maxIdle) {
+                idle.addFirst(new IdleConnection(ctx, System.currentTimeMillis(), readTimeoutMillis));
+                return;
+            }
+        }
+        evict(ctx);
+    }
+
+    /**
+     * Give back a connection that failed. The server has most likely dropped all
+     * our connections, so the idle ones are discarded as well.
+     */
+    public void invalidate(LdapContext ctx) {
+        evict(ctx);
+        synchronized (this) {
+            for (IdleConnection ic : idle) {
+                evict(ic.ctx);
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Give back a connection that cannot be reused, leaving the idle ones.
+     */
+    public void discard(LdapContext ctx) {
+        evict(ctx);
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (IdleConnection ic : idle) {
+                evict(ic.ctx);
+            }
+            idle.clear();
+        }
+    }
+
+    private LdapContext connect(Deadline deadline) throws NamingException {
+        Hashtable<String,Object> environment = new Hashtable<String,Object>();
+        environment.put(Context.PROVIDER_URL, ldapUrl);
+        environment.put(Context.REFERRAL, "ignore");
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        environment.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(Math.max(1L, Math.min(5000L, deadline.remainingMillis()))));
+        if (deadline.isSet()) {
+            environment.put(READ_TIMEOUT, String.valueOf(deadline.timeoutMillis()));
+        }
+        environment.put("java.naming.ldap.version", "3");
+        environment.put(Context.SECURITY_AUTHENTICATION, "none");
+        Control[] connCtls = new Control[0];
+        Histogram.Timer connectTimer = LdapCollector.scrapePhaseDuration.labels("connect").startTimer();
+        LdapContext ctx;
+        try {
+            ctx = new InitialLdapContext(environment, connCtls);
+        } finally {
+            connectTimer.observeDuration();
+        }
+        connects.inc();
+        if (username != null && username.length() != 0 && password != null && password.length() != 0) {
+            // Bind on the connection just opened.
+            Histogram.Timer timer = LdapCollector.scrapePhaseDuration.labels("bind").startTimer();
+            try {
+                ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+                ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, username);
+                ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+                ctx.reconnect(connCtls);
+            } catch (NamingException e) {
+                ctx.close();
+                throw e;
+            } finally {
+                timer.observeDuration();
+            }
+        }
+        return ctx;
+    }
+
+    /**
+     * Check a connection with a root DSE read.
+     */
+    boolean isAlive(LdapContext ctx) {
+        try {
+            ctx.getAttributes("", new String[] {"1.1"});
+            return true;
+        } catch (NamingException e) {
+            logger.log(Level.FINE, "Discarding broken pooled LDAP connection: " + e);
+            return false;
+        }
+    }
+
+    /*
+    The most recently used idle connection opened with this read timeout, 0 for none.
+    */
+    private IdleConnection pollIdle(long readTimeoutMillis) {
+        Iterator<IdleConnection> it = idle.iterator();
+        while (it.hasNext()) {
+            IdleConnection ic = it.next();
+            if (ic.readTimeoutMillis == readTimeoutMillis) {
+                it.remove();
+                return ic;
+            }
+        }
+        return null;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<IdleConnection> it = idle.iterator();
+        while (it.hasNext()) {
+            IdleConnection ic = it.next();
+            if (now - ic.idleSince >= idleTimeoutMillis) {
+                it.remove();
+                evict(ic.ctx);
+            }
+        }
+    }
+
+    private static void evict(LdapContext ctx) {
+        evictions.inc();
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            logger.log(Level.FINE, "Error closing LDAP connection: " + e);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -2,17 +2,21 @@ package com.titisan.ldap;
 
 import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.naming.Context;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
-import javax.naming.ldap.Control;
-import javax.naming.ldap.InitialLdapContext;
-import javax.naming.ldap.LdapContext;
+import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
@@ -32,122 +36,414 @@ public class LdapScraper {
     }
 
     private LdapReceiver receiver;
-    private String ldapUrl;
     private String baseDn;
-    private String username;
-    private String password;
     private List<String> whitelistEntryNames, blacklistEntryNames, extraAttrsToReturn;
+    private ScraperBackend backend;
+    // Set when the scraper created its own connection pool, closed after the scrape.
+    private LdapConnectionPool ownConnectionPool;
+    private int pageSize = 0;
+    private ExecutorService executor;
+    private IncrementalState incrementalState;
+    private PersistentSearch persistentSearch;
+    private AttributeDecoders attributeDecoders = AttributeDecoders.DEFAULTS;
+    private QueryPlan queryPlan;
+    private List<String> targetEntryDNs = new ArrayList<String>();
+    private Deadline deadline = Deadline.NONE;
+    // Entries of the running incremental scrape, null when not incremental.
+    private IncrementalState.Fetch fetch;
+    // Time spent in each scrape phase, summed over the threads.
+    private final AtomicLong searchNanos = new AtomicLong();
+    private final AtomicLong enumerationNanos = new AtomicLong();
+    private final AtomicLong rulesNanos = new AtomicLong();
 
     public LdapScraper(String ldapUrl, String username, String password, String baseDN, List<String> whitelistEntryNames, List<String> blacklistEntryNames, List<String> extraAttrsToReturn, LdapReceiver receiver) {
-        this.ldapUrl = ldapUrl;
+        this(new LdapConnectionPool(ldapUrl, username, password, 1, 0L), baseDN, whitelistEntryNames, blacklistEntryNames, extraAttrsToReturn, receiver);
+        this.ownConnectionPool = ((JndiScraperBackend) backend).getConnectionPool();
+    }
+
+    public LdapScraper(LdapConnectionPool connectionPool, String baseDN, List<String> whitelistEntryNames, List<String> blacklistEntryNames, List<String> extraAttrsToReturn, LdapReceiver receiver) {
+        this(new JndiScraperBackend(connectionPool), baseDN, whitelistEntryNames, blacklistEntryNames, extraAttrsToReturn, receiver);
+    }
+
+    public LdapScraper(ScraperBackend backend, String baseDN, List<String> whitelistEntryNames, List<String> blacklistEntryNames, List<String> extraAttrsToReturn, LdapReceiver receiver) {
+        this.backend = backend;
         this.receiver = receiver;
-        this.username = username;
-        this.password = password;
         this.baseDn = baseDN;
         this.whitelistEntryNames = whitelistEntryNames;
         this.blacklistEntryNames = blacklistEntryNames;
         this.extraAttrsToReturn = extraAttrsToReturn;
     }
 
+    /**
+      * Request the results in pages of this many entries (RFC 2696), 0 to disable.
+      */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+      * Scrape the one-level children of the base DN concurrently on this executor,
+      * each on its own pooled connection. Null to scrape with a single subtree search.
+      */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+      * Keep the scraped entries in this state, shared by successive scrapes, and only
+      * fetch the entries changed since the previous scrape. Null to always fetch everything.
+      */
+    public void setIncrementalState(IncrementalState incrementalState) {
+        this.incrementalState = incrementalState;
+    }
+
+    /**
+      * Render the entries of this running persistent search instead of searching.
+      */
+    public void setPersistentSearch(PersistentSearch persistentSearch) {
+        this.persistentSearch = persistentSearch;
+    }
+
+    /**
+      * Decode the attribute values with these decoders instead of the defaults.
+      */
+    public void setAttributeDecoders(AttributeDecoders attributeDecoders) {
+        this.attributeDecoders = attributeDecoders;
+    }
+
+    /**
+      * Search with the filter and attributes of this plan, instead of those of
+      * the white and black lists.
+      */
+    public void setQueryPlan(QueryPlan queryPlan) {
+        this.queryPlan = queryPlan;
+    }
+
+    /**
+      * Only read these entries, under the base DN, instead of searching its subtree.
+      * They are read on one connection with pipelined requests, or concurrently on
+      * the executor if set.
+      */
+    public void setTargetEntryDNs(List<String> targetEntryDNs) {
+        this.targetEntryDNs = targetEntryDNs;
+    }
+
+    /**
+      * Give up past this deadline: doScrape then throws a TimeLimitExceededException,
+      * the entries read until then having been passed to the receiver.
+      */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
     /**
       * Get a list of attributes on ldapUrl and scrape their values.
       *
-      * Values are passed to the receiver in a single thread.
+      * Values are passed to the receiver one at a time, from one or more threads.
       */
     public void doScrape() throws Exception {
-        LdapContext dirConn = null;
         try {
-            Hashtable<String,Object> environment = new Hashtable<String,Object>();
-            environment.put(Context.PROVIDER_URL, ldapUrl);
-            environment.put(Context.REFERRAL, "ignore");
-            environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-            environment.put("com.sun.jndi.ldap.connect.timeout", "5000");
-            environment.put("java.naming.ldap.version", "3");
-            if (username != null && username.length() != 0 && password != null && password.length() != 0) {
-                environment.put(Context.SECURITY_AUTHENTICATION, "simple");
-                environment.put(Context.SECURITY_PRINCIPAL, username);
-                environment.put(Context.SECURITY_CREDENTIALS, password);
-            }
-            Control[] connCtls = new Control[0];
-            dirConn = new InitialLdapContext(environment, connCtls);
-            //dirConn.reconnect(connCtls);
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            try {
-               List<String> attributesToReturn = new ArrayList<String>( Arrays.asList(defatulAttributesToReturn) );
-               for (String extraAttr : extraAttrsToReturn) {
-                  // Add configured extra attributes to return, if any.
-                  attributesToReturn.add(extraAttr);
-               }
-               ctls.setReturningAttributes(attributesToReturn.toArray(new String[] {} ));
-            } catch (Exception e) {
-               logger.log(Level.FINE,"Error in doScrape adding extra attributes to return." + e);
+            if (persistentSearch != null) {
+                // The table is kept up to date in the background, there is nothing to search.
+                boolean loaded = persistentSearch.awaitLoaded(Math.min(5000L, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+                scrapeBackMonitorData(persistentSearch.results(), null);
+                if (!loaded || !persistentSearch.isConnected()) {
+                    String error = persistentSearch.getLastError();
+                    throw new NamingException("Persistent search on " + baseDn + " is not running: " + (error == null ? "still loading" : error));
+                }
+                return;
+            }
+
+            QueryPlan plan = queryPlan != null ? queryPlan : QueryPlan.unplanned(whitelistEntryNames, blacklistEntryNames, extraAttrsToReturn);
+            List<String> attributesToReturn = new ArrayList<String>(plan.getAttributes());
+            boolean timestampRequested = false;
+            for (String attribute : attributesToReturn) {
+                timestampRequested |= IncrementalState.TIMESTAMP_ATTRIBUTE.equalsIgnoreCase(attribute);
             }
+            if (incrementalState != null && !timestampRequested) {
+               attributesToReturn.add(IncrementalState.TIMESTAMP_ATTRIBUTE);
+            }
+            String[] attributes = attributesToReturn.toArray(new String[] {} );
            
-            String filterStr = null;
-            StringBuilder filter = new StringBuilder();
-            if (whitelistEntryNames.size() > 0 || blacklistEntryNames.size() > 0) {
-                filter.append("(&");
-                if ( whitelistEntryNames.size() > 0) {
-                    // Compose the filter by using the white listed entry dns
-                    filter.append("(|");
-                    for (String wlstr : whitelistEntryNames) {
-                        filter.append("(" + wlstr + ") ");
-                    }
-                    filter.append(")");
+            String filterStr = plan.getFilter();
+
+            long now = System.currentTimeMillis();
+            if (incrementalState != null) {
+                String changesFilter = incrementalState.changesFilter(now);
+                fetch = new IncrementalState.Fetch(changesFilter == null, timestampRequested);
+                if (changesFilter != null) {
+                    filterStr = "(&" + filterStr + changesFilter + ")";
                 }
-                if (blacklistEntryNames.size() > 0) {
-                    // Compose the filter by using the black listed entry dns
-                    filter.append("(&");
-                    for (String blstr : blacklistEntryNames) {
-                        filter.append("(!(" + blstr + "))");
+            }
+
+            long start = System.nanoTime();
+            if (!targetEntryDNs.isEmpty()) {
+                scrapeTargets(filterStr, attributes);
+            } else if (executor == null) {
+                search(baseDn, SearchControls.SUBTREE_SCOPE, filterStr, attributes, new MonitorDataHandler(null));
+            } else {
+                scrapePartitioned(filterStr, attributes);
+            }
+            if (fetch != null) {
+                // Hand the complete view to the receiver, only once all the changes are in.
+                incrementalState.apply(fetch, now);
+                logger.fine("Fetched " + fetch.size() + " changed entries of " + incrementalState.size());
+                scrapeBackMonitorData(incrementalState.results(), null);
+            }
+            logger.fine("TIME: " + (System.nanoTime() - start) + " ns for reading " + baseDn + " data");
+        } finally {
+            LdapCollector.scrapePhaseDuration.labels("search").observe(searchNanos.get() / 1.0E9);
+            LdapCollector.scrapePhaseDuration.labels("enumeration").observe(enumerationNanos.get() / 1.0E9);
+            LdapCollector.scrapePhaseDuration.labels("rules").observe(rulesNanos.get() / 1.0E9);
+            if (ownConnectionPool != null) {
+                ownConnectionPool.close();
+            }
+        }
+    }
+
+    /*
+    The attributes to ask for, the monitor counters plus the configured extra attributes.
+    */
+    static List<String> attributesToReturn(List<String> extraAttrsToReturn) {
+        List<String> attributesToReturn = new ArrayList<String>( Arrays.asList(defatulAttributesToReturn) );
+        for (String extraAttr : extraAttrsToReturn) {
+           // Add configured extra attributes to return, if any.
+           attributesToReturn.add(extraAttr);
+        }
+        return attributesToReturn;
+    }
+
+    /*
+    The search filter selecting the white listed entries minus the black listed ones.
+    */
+    static String searchFilter(List<String> whitelistEntryNames, List<String> blacklistEntryNames) {
+        if (whitelistEntryNames.size() == 0 && blacklistEntryNames.size() == 0) {
+            return "(|(objectClass=*) (structuralObjectClass=*))";
+        }
+        StringBuilder filter = new StringBuilder();
+        filter.append("(&");
+        if ( whitelistEntryNames.size() > 0) {
+            // Compose the filter by using the white listed entry dns
+            filter.append("(|");
+            for (String wlstr : whitelistEntryNames) {
+                filter.append("(" + wlstr + ") ");
+            }
+            filter.append(")");
+        }
+        if (blacklistEntryNames.size() > 0) {
+            // Compose the filter by using the black listed entry dns
+            filter.append("(&");
+            for (String blstr : blacklistEntryNames) {
+                filter.append("(!(" + blstr + "))");
+            }
+            filter.append(")");
+        }
+        filter.append(")");
+        return filter.toString();
+    }
+
+    /*
+    Scrape the base entry, then the subtree of each of its children in parallel.
+    */
+    private void scrapePartitioned(final String filterStr, final String[] attributes) throws Exception {
+        final List<String[]> children = new ArrayList<String[]>();
+        search(baseDn, SearchControls.ONELEVEL_SCOPE, "(objectClass=*)", new String[0], new ScraperBackend.ResultHandler() {
+            public void handle(NamingEnumeration<SearchResult> results) throws NamingException {
+                while (results.hasMore()) {
+                    SearchResult sr = results.next();
+                    children.add(new String[] { sr.getName(), sr.getName() + "," + baseDn });
+                }
+            }
+        });
+        logger.fine("Scraping " + children.size() + " subtrees of " + baseDn + " in parallel");
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        futures.add(executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                search(baseDn, SearchControls.OBJECT_SCOPE, filterStr, attributes, new MonitorDataHandler(null));
+                return null;
+            }
+        }));
+        for (final String[] child : children) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    search(child[1], SearchControls.SUBTREE_SCOPE, filterStr, attributes, new MonitorDataHandler(child[0]));
+                    return null;
+                }
+            }));
+        }
+
+        awaitAll(futures);
+    }
+
+    /*
+    Wait for all the searches, then throw the first failure if any. Past the
+    deadline, the searches still running are cancelled.
+    */
+    private void awaitAll(List<Future<Void>> futures) throws Exception {
+        Exception failure = null;
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    if (deadline.isSet()) {
+                        future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+                    } else {
+                        future.get();
                     }
-                    filter.append(")");
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                } catch (TimeoutException e) {
+                    throw deadline.exceeded();
                 }
-                filter.append(")");
-                filterStr = filter.toString();
             }
-             else {
-                filterStr = "(|(objectClass=*) (structuralObjectClass=*))";
+        } finally {
+            // Nothing left to cancel unless the wait was cut short.
+            for (Future<Void> future : futures) {
+                future.cancel(true);
             }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
+    /*
+    Read the target entries, all at once on one connection or each on its own in parallel.
+    */
+    private void scrapeTargets(final String filterStr, final String[] attributes) throws Exception {
+        List<ScraperBackend.ResultHandler> handlers = new ArrayList<ScraperBackend.ResultHandler>();
+        for (String dn : targetEntryDNs) {
+            String name = relativeDn(dn, baseDn);
+            if (name == null) {
+                throw new NamingException("Target entry " + dn + " is not under " + baseDn);
+            }
+            handlers.add(new MonitorDataHandler(name));
+        }
+        if (executor == null) {
+            final long[] handlerNanos = new long[1];
+            List<ScraperBackend.ResultHandler> timedHandlers = new ArrayList<ScraperBackend.ResultHandler>();
+            for (ScraperBackend.ResultHandler handler : handlers) {
+                timedHandlers.add(timed(handler, handlerNanos));
+            }
             long start = System.nanoTime();
-            NamingEnumeration<SearchResult> searchResult = dirConn.search(baseDn, filterStr, ctls);
-            logger.fine("TIME: " + (System.nanoTime() - start) + " ns for reading " + baseDn + " data");
-            scrapeBackMonitorData(searchResult);
-            searchResult.close();
+            try {
+                backend.readEntries(targetEntryDNs, filterStr, attributes, deadline, timedHandlers);
+            } finally {
+                searchNanos.addAndGet(System.nanoTime() - start - handlerNanos[0]);
+            }
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < targetEntryDNs.size(); i++) {
+            final String dn = targetEntryDNs.get(i);
+            final ScraperBackend.ResultHandler handler = handlers.get(i);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        search(dn, SearchControls.OBJECT_SCOPE, filterStr, attributes, handler);
+                    } catch (NameNotFoundException e) {
+                        logger.log(Level.FINE, "Entry " + dn + " does not exist");
+                    }
+                    return null;
+                }
+            }));
+        }
+        awaitAll(futures);
+    }
+
+    private class MonitorDataHandler implements ScraperBackend.ResultHandler {
+        private final String namePrefix;
+
+        MonitorDataHandler(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public void handle(NamingEnumeration<SearchResult> results) throws NamingException {
+            if (fetch != null) {
+                while (results.hasMore()) {
+                    deadline.check();
+                    SearchResult sr = results.next();
+                    fetch.add(relativeName(sr, namePrefix), sr.getAttributes());
+                }
+            } else {
+                scrapeBackMonitorData(results, namePrefix);
+            }
+        }
+    }
+
+    /*
+    Run a search on the backend, timing what is not spent handling the results as the search phase.
+    */
+    private void search(String searchBase, int scope, String filterStr, String[] attributes, final ScraperBackend.ResultHandler handler) throws NamingException {
+        long[] handlerNanos = new long[1];
+        long start = System.nanoTime();
+        try {
+            backend.search(searchBase, scope, filterStr, attributes, pageSize, deadline, timed(handler, handlerNanos));
         } finally {
-          if (dirConn != null) {
-            dirConn.close();
-          }
+            searchNanos.addAndGet(System.nanoTime() - start - handlerNanos[0]);
         }
     }
 
+    /*
+    Add the time spent in handler to handlerNanos.
+    */
+    private static ScraperBackend.ResultHandler timed(final ScraperBackend.ResultHandler handler, final long[] handlerNanos) {
+        return new ScraperBackend.ResultHandler() {
+            public void handle(NamingEnumeration<SearchResult> results) throws NamingException {
+                long handlerStart = System.nanoTime();
+                try {
+                    handler.handle(results);
+                } finally {
+                    handlerNanos[0] += System.nanoTime() - handlerStart;
+                }
+            }
+        };
+    }
 
     /*
     Process the LDAP search result, format the info to be sent to the receiver.
+    Failures, past the deadline included, end the scrape: the entries already
+    passed to the receiver are kept, the others are not read.
     */
-    private void scrapeBackMonitorData(NamingEnumeration<SearchResult> ldapAnswer) {
+    void scrapeBackMonitorData(NamingEnumeration<SearchResult> ldapAnswer, String namePrefix) throws NamingException {
+        long start = System.nanoTime();
+        long rules = 0;
+        int num_entries = 0;
+        int num_attrs = 0;
+        int num_non_numeric = 0;
         try {
-            int num_entries = 0;
-            while (ldapAnswer.hasMoreElements()) {
-                SearchResult sr = (SearchResult)ldapAnswer.nextElement();
+            while (ldapAnswer.hasMore()) {
+                deadline.check();
+                SearchResult sr = ldapAnswer.next();
+                String dn = relativeName(sr, namePrefix);
                 Attributes attrs = sr.getAttributes();
                 NamingEnumeration e = attrs.getAll();
                 while (e.hasMoreElements()) {
                     Attribute attr = (Attribute) e.nextElement();
+                    num_attrs += 1;
                     // When there are more than one attr in a LDAP entry the recorded entry name is the DN + attr. name
                     // For example the monitorOpInitiated and monitorOpCompleted attrs.
                     // There might be entries in the result set that do not contain any of the attributes to return 
                     //if (Arrays.asList(attributesToReturn).contains(attr.getID())) {
-                        String entryName = attrs.size() == 1 ? sr.getName() : sr.getName() + "_" + attr.getID();
-                        try {
-                           Double value = Double.valueOf((String)attr.get());
-                           receiver.recordLdapEntry(entryName, value, attr.getID(), sr.getName() + "_"  + attr.getID());
-                           logger.log(Level.FINE, "LDAP entry info: DN:" + entryName + 
-                                                   " attr. name: " + attr.getID() + 
-                                                   " value: " + attr.get().toString()); 
-                        } catch (NumberFormatException numformatexcep) {
+                        String entryName = attrs.size() == 1 ? dn : dn + "_" + attr.getID();
+                        Object rawValue = attr.get();
+                        Double value = rawValue instanceof String ? attributeDecoders.get(attr.getID()).decode((String) rawValue) : null;
+                        if (value != null) {
+                           long recordStart = System.nanoTime();
+                           synchronized (receiver) {
+                               receiver.recordLdapEntry(entryName, value, attr.getID(), dn + "_"  + attr.getID());
+                           }
+                           rules += System.nanoTime() - recordStart;
+                           if (logger.isLoggable(Level.FINE)) {
+                               logger.log(Level.FINE, "LDAP entry info: DN:" + entryName + 
+                                                       " attr. name: " + attr.getID() + 
+                                                       " value: " + attr.get().toString()); 
+                           }
+                        } else {
+                           num_non_numeric += 1;
                            //logger.log(Level.FINE,"not a numeric metric: " + entryName);
                         }
                     //}
@@ -155,10 +451,32 @@ public class LdapScraper {
                 num_entries += 1;
             }
             logger.log(Level.FINE,"Scraped " + num_entries + " counters");
-        } catch (Exception e) {
-            logger.log(Level.FINE,"error in scrapeBackMonitorData" + e);
+        } finally {
+            rulesNanos.addAndGet(rules);
+            enumerationNanos.addAndGet(System.nanoTime() - start - rules);
+            LdapCollector.entriesScraped.inc(num_entries);
+            LdapCollector.attributesScraped.inc(num_attrs);
+            LdapCollector.attributesNonNumeric.inc(num_non_numeric);
         }
-        
+    }
+
+    /**
+      * The name of dn relative to baseDn, empty for baseDn itself, null if dn is not under it.
+      * Entry names are always reported relative to the base DN.
+      */
+    static String relativeDn(String dn, String baseDn) {
+        if (dn.equalsIgnoreCase(baseDn)) {
+            return "";
+        }
+        String suffix = "," + baseDn;
+        if (dn.length() > suffix.length() && dn.regionMatches(true, dn.length() - suffix.length(), suffix, 0, suffix.length())) {
+            return dn.substring(0, dn.length() - suffix.length());
+        }
+        return null;
+    }
+
+    private static String relativeName(SearchResult sr, String namePrefix) {
+        return namePrefix == null ? sr.getName() : (sr.getName().isEmpty() ? namePrefix : sr.getName() + "," + namePrefix);
     }
 
     private static class StdoutWriter implements LdapReceiver {
@@ -0,0 +1,362 @@
+package com.titisan.ldap;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+
+import io.prometheus.client.Counter;
+
+/**
+ * Live table of the entries under the base DN, kept up to date by a
+ * Persistent Search (draft-ietf-ldapext-psearch) instead of polling.
+ *
+ * A background thread holds one search open on its own connection. The server
+ * first sends every entry, then each added, modified, renamed or deleted entry
+ * with an Entry Change Notification control, which are applied to the table.
+ * Scrapes render the table without talking to the server, so the directory load
+ * follows the change rate and not the scrape rate.
+ *
+ * After a reconnect the table is refilled by the initial results, and the entries
+ * they did not include are removed once the server starts sending changes or goes
+ * quiet, as Persistent Search does not mark the end of the initial results.
+ */
+public class PersistentSearch implements Closeable {
+    static final Counter changes = Counter.build()
+      .name("ldapexporter_persistent_search_changes_total")
+      .help("Number of entries received on the persistent search, by change type.")
+      .labelNames("type").register();
+
+    static final Counter restarts = Counter.build()
+      .name("ldapexporter_persistent_search_restarts_total")
+      .help("Number of times the persistent search has been started.").register();
+
+    private static final Logger logger = Logger.getLogger(PersistentSearch.class.getName());
+
+    static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+    static final String ENTRY_CHANGE_NOTIFICATION_OID = "2.16.840.1.113730.3.4.7";
+    // changeTypes all (15), changesOnly FALSE, returnECs TRUE.
+    private static final byte[] PERSISTENT_SEARCH_VALUE = {
+        0x30, 0x09, 0x02, 0x01, 0x0f, 0x01, 0x01, 0x00, 0x01, 0x01, (byte) 0xff };
+    private static final int ADD = 1;
+    private static final int DELETE = 2;
+    private static final int MODIFY = 4;
+    private static final int MODDN = 8;
+    // Quiet time after which the initial results are taken as complete.
+    private static final long SETTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_RETRY_MILLIS = 30000L;
+
+    private final LdapConnectionPool connectionPool;
+    private final String baseDn;
+    private final String filter;
+    private final String[] attributesToReturn;
+    private final Map<String, Attributes> entries = new ConcurrentHashMap<String, Attributes>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final Thread thread;
+    // Entries received since the search started, until the initial results are complete.
+    private Set<String> initialNames;
+    private volatile long lastInitialNanos;
+    private volatile boolean connected = false;
+    private volatile String lastError;
+    private volatile boolean closed = false;
+
+    public PersistentSearch(LdapConnectionPool connectionPool, String baseDn, String filter, List<String> attributesToReturn) {
+        this.connectionPool = connectionPool;
+        this.baseDn = baseDn;
+        this.filter = filter;
+        this.attributesToReturn = attributesToReturn.toArray(new String[0]);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                runSearches();
+            }
+        }, "ldapexporter-persistent-search");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void close() {
+        closed = true;
+        // Unblocks the enumeration, JNDI then abandons the search.
+        thread.interrupt();
+    }
+
+    /**
+     * Wait for the table to be filled for the first time.
+     */
+    public boolean awaitLoaded(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!loaded.await(Math.min(SETTLE_NANOS, Math.max(0, deadline - System.nanoTime())), TimeUnit.NANOSECONDS)) {
+            // A server without changes to send never ends the initial results.
+            settleIfQuiet();
+            if (loaded.getCount() > 0 && System.nanoTime() >= deadline) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the search is running, else the table may be stale.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * The entries of the table, named relative to the base DN.
+     */
+    NamingEnumeration<SearchResult> results() {
+        settleIfQuiet();
+        final Iterator<Map.Entry<String, Attributes>> it = entries.entrySet().iterator();
+        return new NamingEnumeration<SearchResult>() {
+            public boolean hasMore() {
+                return it.hasNext();
+            }
+
+            public SearchResult next() {
+                return nextElement();
+            }
+
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            public SearchResult nextElement() {
+                if (!it.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, Attributes> entry = it.next();
+                return new SearchResult(entry.getKey(), null, entry.getValue());
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void runSearches() {
+        long retryMillis = 1000L;
+        while (!closed) {
+            LdapContext ctx = null;
+            try {
+                // Its own connection, the search reads for as long as it runs.
+                ctx = connectionPool.open();
+                runSearch(ctx);
+                retryMillis = 1000L;
+            } catch (NamingException e) {
+                if (closed) {
+                    break;
+                }
+                lastError = e.toString();
+                logger.log(Level.SEVERE, "Persistent search on " + baseDn + " failed, retrying in " + retryMillis + " ms: " + e);
+                if (ctx != null) {
+                    connectionPool.discard(ctx);
+                    ctx = null;
+                }
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            } catch (RuntimeException e) {
+                lastError = e.toString();
+                logger.log(Level.SEVERE, "Persistent search on " + baseDn + " stopped: " + e);
+                break;
+            } finally {
+                connected = false;
+                if (ctx != null) {
+                    // The connection carried the search, do not reuse it.
+                    connectionPool.discard(ctx);
+                }
+            }
+        }
+    }
+
+    private void runSearch(LdapContext ctx) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctls.setReturningAttributes(attributesToReturn);
+        // Critical, the results would never change on a server ignoring it.
+        ctx.setRequestControls(new Control[] { new BasicControl(PERSISTENT_SEARCH_OID, Control.CRITICAL, PERSISTENT_SEARCH_VALUE) });
+        synchronized (this) {
+            initialNames = new HashSet<String>();
+            lastInitialNanos = System.nanoTime();
+        }
+        restarts.inc();
+        NamingEnumeration<SearchResult> results = ctx.search(baseDn, filter, ctls);
+        connected = true;
+        lastError = null;
+        try {
+            while (results.hasMore()) {
+                apply(results.next());
+            }
+            throw new NamingException("Persistent search ended by the server");
+        } finally {
+            results.close();
+        }
+    }
+
+    private void apply(SearchResult sr) throws NamingException {
+        String name = sr.getName();
+        int changeType = changeType(sr);
+        switch (changeType) {
+            case 0:
+                entries.put(name, sr.getAttributes());
+                changes.labels("initial").inc();
+                synchronized (this) {
+                    if (initialNames != null) {
+                        initialNames.add(name);
+                    }
+                }
+                lastInitialNanos = System.nanoTime();
+                return;
+            case DELETE:
+                entries.remove(name);
+                changes.labels("delete").inc();
+                break;
+            case MODDN:
+                String previousName = previousName(sr);
+                if (previousName != null) {
+                    entries.remove(previousName);
+                }
+                entries.put(name, sr.getAttributes());
+                changes.labels("moddn").inc();
+                break;
+            default:
+                entries.put(name, sr.getAttributes());
+                changes.labels(changeType == ADD ? "add" : changeType == MODIFY ? "modify" : "unknown").inc();
+                break;
+        }
+        // The server only sends changes once the initial results are done.
+        settle();
+    }
+
+    private void settleIfQuiet() {
+        if (System.nanoTime() - lastInitialNanos > SETTLE_NANOS) {
+            settle();
+        }
+    }
+
+    /*
+    The initial results are complete, drop the entries they did not include.
+    */
+    private synchronized void settle() {
+        if (initialNames == null || !connected) {
+            return;
+        }
+        entries.keySet().retainAll(initialNames);
+        initialNames = null;
+        loaded.countDown();
+        logger.fine("Persistent search on " + baseDn + " loaded " + entries.size() + " entries");
+    }
+
+    private static int changeType(SearchResult sr) throws NamingException {
+        byte[] value = entryChangeNotification(sr);
+        if (value == null) {
+            return 0;
+        }
+        // EntryChangeNotification ::= SEQUENCE { changeType ENUMERATED, ... }
+        int i = skipHeader(value, 0, 0x30);
+        int length = value[i + 1] & 0xff;
+        if (value[i] != 0x0a || length < 1 || length > 4) {
+            throw new NamingException("Invalid entry change notification control");
+        }
+        int changeType = 0;
+        for (int j = 0; j < length; j++) {
+            changeType = (changeType << 8) | (value[i + 2 + j] & 0xff);
+        }
+        return changeType;
+    }
+
+    /*
+    The previous name of a renamed entry relative to the base DN, null if unknown or out of the base DN.
+    */
+    private String previousName(SearchResult sr) throws NamingException {
+        byte[] value = entryChangeNotification(sr);
+        int i = skipHeader(value, 0, 0x30);
+        // Skip the changeType.
+        i += 2 + (value[i + 1] & 0xff);
+        if (i >= value.length || value[i] != 0x04) {
+            return null;
+        }
+        int start = skipHeader(value, i, 0x04);
+        int length = start - i > 2 ? decodeLength(value, i + 1) : value[i + 1] & 0xff;
+        String previousDn = new String(value, start, length, StandardCharsets.UTF_8);
+        if (previousDn.equalsIgnoreCase(baseDn)) {
+            return "";
+        }
+        String suffix = "," + baseDn;
+        if (previousDn.length() > suffix.length()
+            && previousDn.regionMatches(true, previousDn.length() - suffix.length(), suffix, 0, suffix.length())) {
+            return previousDn.substring(0, previousDn.length() - suffix.length());
+        }
+        return null;
+    }
+
+    private static byte[] entryChangeNotification(SearchResult sr) throws NamingException {
+        if (!(sr instanceof HasControls)) {
+            return null;
+        }
+        Control[] controls = ((HasControls) sr).getControls();
+        if (controls == null) {
+            return null;
+        }
+        for (Control control : controls) {
+            if (ENTRY_CHANGE_NOTIFICATION_OID.equals(control.getID())) {
+                return control.getEncodedValue();
+            }
+        }
+        return null;
+    }
+
+    /*
+    Check the BER tag at offset and return the offset of its value.
+    */
+    private static int skipHeader(byte[] ber, int offset, int tag) throws NamingException {
+        if (ber == null || offset + 1 >= ber.length || (ber[offset] & 0xff) != tag) {
+            throw new NamingException("Invalid entry change notification control");
+        }
+        int first = ber[offset + 1] & 0xff;
+        return offset + 2 + (first < 0x80 ? 0 : first & 0x7f);
+    }
+
+    private static int decodeLength(byte[] ber, int offset) {
+        int count = ber[offset] & 0x7f;
+        int length = 0;
+        for (int j = 1; j <= count; j++) {
+            length = (length << 8) | (ber[offset + j] & 0xff);
+        }
+        return length;
+    }
+}
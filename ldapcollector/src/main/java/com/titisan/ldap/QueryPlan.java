@@ -0,0 +1,177 @@
+package com.titisan.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The search filter and returned attributes of the scrapes, derived once from
+ * the configuration when it is loaded.
+ *
+ * Only entries holding one of the returned attributes can produce a sample, so
+ * the filter asks for them alone. Rule patterns must match the whole entry name,
+ * whose first RDN is the entry's own, so when every rule starts with a literal
+ * RDN such as cn=Total, the filter also asks for the entries with that RDN
+ * value. The server may still return entries no rule matches, never fewer.
+ *
+ * The returned attributes are not pruned: entry names get the attribute name
+ * appended when an entry has more than one of them, so dropping an attribute no
+ * rule matches would rename the others.
+ */
+public class QueryPlan {
+    private final String filter;
+    private final List<String> attributes;
+    // Why each rule does or does not restrict the filter, for describe().
+    private final List<String> ruleNotes = new ArrayList<String>();
+
+    /**
+     * @param rulePatterns the rule patterns in order, null for rules matching everything.
+     */
+    QueryPlan(List<Pattern> rulePatterns, List<String> whitelistEntryNames, List<String> blacklistEntryNames, List<String> extraAttrsToReturn) {
+        attributes = Collections.unmodifiableList(LdapScraper.attributesToReturn(extraAttrsToReturn));
+
+        List<String> components = new ArrayList<String>();
+        if (whitelistEntryNames.size() > 0 || blacklistEntryNames.size() > 0) {
+            components.add(LdapScraper.searchFilter(whitelistEntryNames, blacklistEntryNames));
+        }
+        StringBuilder presence = new StringBuilder("(|");
+        for (String attribute : new LinkedHashSet<String>(attributes)) {
+            presence.append('(').append(attribute).append("=*)");
+        }
+        components.add(presence.append(')').toString());
+
+        Set<String> ruleFilters = new LinkedHashSet<String>();
+        boolean unrestricted = false;
+        for (int i = 0; i < rulePatterns.size(); i++) {
+            Pattern pattern = rulePatterns.get(i);
+            String ruleFilter = pattern == null ? null : rdnFilter(RuleIndex.literalPrefix(pattern));
+            ruleNotes.add(String.format("%4d %-40s %s", i, pattern == null ? "" : pattern.pattern(),
+                ruleFilter != null ? ruleFilter : "no literal RDN, any entry"));
+            if (ruleFilter == null) {
+                unrestricted = true;
+            } else {
+                ruleFilters.add(ruleFilter);
+            }
+        }
+        if (!unrestricted && !ruleFilters.isEmpty()) {
+            if (ruleFilters.size() == 1) {
+                components.add(ruleFilters.iterator().next());
+            } else {
+                StringBuilder any = new StringBuilder("(|");
+                for (String ruleFilter : ruleFilters) {
+                    any.append(ruleFilter);
+                }
+                components.add(any.append(')').toString());
+            }
+        }
+
+        if (components.size() == 1) {
+            filter = components.get(0);
+        } else {
+            StringBuilder all = new StringBuilder("(&");
+            for (String component : components) {
+                all.append(component);
+            }
+            filter = all.append(')').toString();
+        }
+    }
+
+    /**
+     * A plan returning what the white and black lists select, as before rules were planned.
+     */
+    static QueryPlan unplanned(List<String> whitelistEntryNames, List<String> blacklistEntryNames, List<String> extraAttrsToReturn) {
+        return new QueryPlan(Collections.<Pattern>singletonList(null), whitelistEntryNames, blacklistEntryNames, extraAttrsToReturn);
+    }
+
+    String getFilter() {
+        return filter;
+    }
+
+    /**
+     * The attributes to return, not to be modified.
+     */
+    List<String> getAttributes() {
+        return attributes;
+    }
+
+    String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("filter: ").append(filter).append('\n');
+        sb.append("attributes: ").append(attributes).append('\n');
+        sb.append(String.format("%4s %-40s %s%n", "rule", "pattern", "filter"));
+        for (String note : ruleNotes) {
+            sb.append(note).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /*
+    The filter selecting the entries whose name starts with prefix, from its first RDN,
+    null if the prefix does not name the RDN value.
+    */
+    static String rdnFilter(String prefix) {
+        int equals = prefix.indexOf('=');
+        if (equals < 1 || !isAttributeType(prefix.substring(0, equals))) {
+            return null;
+        }
+        int end = equals + 1;
+        while (end < prefix.length() && ",+_\\".indexOf(prefix.charAt(end)) < 0) {
+            end++;
+        }
+        String value = prefix.substring(equals + 1, end);
+        if (end < prefix.length() && prefix.charAt(end) == '\\') {
+            // Escaped DN characters, the value is not worth unescaping.
+            return null;
+        }
+        // The whole value only when followed by the next RDN, an underscore may be part of the value.
+        boolean whole = end < prefix.length() && (prefix.charAt(end) == ',' || prefix.charAt(end) == '+');
+        if (value.isEmpty() || value.charAt(0) == ' ' || value.charAt(value.length() - 1) == ' ') {
+            return null;
+        }
+        return "(" + prefix.substring(0, equals) + "=" + escape(value) + (whole ? "" : "*") + ")";
+    }
+
+    private static boolean isAttributeType(String type) {
+        if (!Character.isLetter(type.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < type.length(); i++) {
+            char c = type.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Escape the filter special characters (RFC 4515).
+    */
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '*':
+                    sb.append("\\2a");
+                    break;
+                case '(':
+                    sb.append("\\28");
+                    break;
+                case ')':
+                    sb.append("\\29");
+                    break;
+                case '\0':
+                    sb.append("\\00");
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
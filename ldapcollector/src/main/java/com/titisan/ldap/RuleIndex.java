@@ -0,0 +1,137 @@
+package com.titisan.ldap;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Index of the rule patterns by literal prefix.
+ *
+ * Rule patterns must match the whole entry name, so a pattern starting with a
+ * literal string can only match entry names starting with it. The prefixes are
+ * kept in a trie, and looking up an entry name walks the trie once to find the
+ * rules worth running the regex for. Rules are returned in configuration order.
+ */
+class RuleIndex {
+    private static final String META_CHARS = "\\[](){}.*+?^$|";
+
+    private static class Node {
+        final Map<Character, Node> children = new HashMap<Character, Node>();
+        int[] rules = new int[0];
+    }
+
+    private final Node root = new Node();
+    private final int size;
+
+    /**
+     * @param patterns the rule patterns in order, null for rules matching everything.
+     */
+    RuleIndex(List<Pattern> patterns) {
+        size = patterns.size();
+        for (int i = 0; i < patterns.size(); i++) {
+            Pattern pattern = patterns.get(i);
+            String prefix = pattern == null ? "" : literalPrefix(pattern);
+            Node node = root;
+            for (int j = 0; j < prefix.length(); j++) {
+                Character c = prefix.charAt(j);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            int[] rules = new int[node.rules.length + 1];
+            System.arraycopy(node.rules, 0, rules, 0, node.rules.length);
+            rules[node.rules.length] = i;
+            node.rules = rules;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Set in candidates the indexes of the rules that may match entryName.
+     */
+    void candidates(String entryName, BitSet candidates) {
+        candidates.clear();
+        Node node = root;
+        int i = 0;
+        while (node != null) {
+            for (int rule : node.rules) {
+                candidates.set(rule);
+            }
+            if (i == entryName.length()) {
+                break;
+            }
+            node = node.children.get(entryName.charAt(i++));
+        }
+    }
+
+    /**
+     * The literal text every string matched by the whole pattern starts with,
+     * possibly empty when in doubt.
+     */
+    static String literalPrefix(Pattern pattern) {
+        String regex = pattern.pattern();
+        if (pattern.flags() != 0 || hasTopLevelAlternation(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                // Only escaped punctuation is a literal, \d, \Q and friends are not.
+                if (next >= regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+                    break;
+                }
+                c = regex.charAt(next);
+                next++;
+            } else if (META_CHARS.indexOf(c) >= 0) {
+                break;
+            }
+            if (next < regex.length()) {
+                char quantifier = regex.charAt(next);
+                if (quantifier == '?' || quantifier == '*' || quantifier == '{') {
+                    // The last literal is optional or repeated.
+                    break;
+                }
+                if (quantifier == '+') {
+                    prefix.append(c);
+                    break;
+                }
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    private static boolean hasTopLevelAlternation(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,263 @@
+package com.titisan.ldap;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+
+/**
+ * Samples grouped by metric family, written in the text exposition format
+ * (version 0.0.4) without a MetricFamilySamples per family nor a Sample per
+ * sample.
+ *
+ * A sample is held as its series and its value in two arrays of the family.
+ * The series are those of the series templates, so they are shared by all the
+ * scrapes, and render their name and labels once. The exposition format groups
+ * the samples by family while the entries arrive in any order, so the samples
+ * are still kept until the end of the scrape, only more compactly.
+ *
+ * Families are written in the order they were first seen. The result of a
+ * scrape is shared by the snapshot and the waiting collects, which add their
+ * own families to it with addAll.
+ */
+public class SampleFamilies {
+    /**
+     * A metric name and its labels.
+     */
+    static final class Series {
+        final String name;
+        final List<String> labelNames;
+        final List<String> labelValues;
+        // The sample line up to the value, rendered on first use.
+        private String text;
+
+        Series(String name, List<String> labelNames, List<String> labelValues) {
+            this.name = name;
+            this.labelNames = labelNames;
+            this.labelValues = labelValues;
+        }
+
+        /*
+        Racy but idempotent, the strings are immutable.
+        */
+        String text() {
+            String t = text;
+            if (t == null) {
+                StringBuilder sb = new StringBuilder(name.length() + 16 * labelNames.size() + 1);
+                sb.append(name);
+                if (labelNames.size() > 0) {
+                    sb.append('{');
+                    for (int i = 0; i < labelNames.size(); i++) {
+                        sb.append(labelNames.get(i)).append("=\"");
+                        escapeLabelValue(sb, labelValues.get(i));
+                        sb.append("\",");
+                    }
+                    sb.append('}');
+                }
+                t = sb.append(' ').toString();
+                text = t;
+            }
+            return t;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final Type type;
+        final String help;
+        Series[] series = new Series[4];
+        double[] values = new double[4];
+        int size;
+        // Set once shared with another SampleFamilies, which then copies it before adding to it.
+        boolean shared;
+
+        Family(String name, Type type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+        }
+
+        void add(Series s, double value) {
+            if (size == values.length) {
+                series = Arrays.copyOf(series, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            series[size] = s;
+            values[size] = value;
+            size++;
+        }
+
+        Family copy() {
+            Family family = new Family(name, type, help);
+            family.series = Arrays.copyOf(series, Math.max(4, size));
+            family.values = Arrays.copyOf(values, Math.max(4, size));
+            family.size = size;
+            return family;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<String, Family>();
+    private int sampleCount;
+
+    /**
+     * Add a sample, to the family of its name. The type and help of a family are
+     * those of its first sample.
+     */
+    void add(Series series, Type type, String help, double value) {
+        family(series.name, type, help).add(series, value);
+        sampleCount++;
+    }
+
+    /**
+     * Add the samples of a family, for the few families not coming from the rules.
+     */
+    void add(MetricFamilySamples mfs) {
+        Family family = family(mfs.name, mfs.type, mfs.help);
+        for (MetricFamilySamples.Sample sample : mfs.samples) {
+            family.add(new Series(sample.name, sample.labelNames, sample.labelValues), sample.value);
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Add the families of other as they are, without copying their samples.
+     * None of them must be in this one already. Adding to one of them later,
+     * here or in other, adds to a copy.
+     */
+    void addAll(SampleFamilies other) {
+        for (Family family : other.families.values()) {
+            family.shared = true;
+            families.put(family.name, family);
+        }
+        sampleCount += other.sampleCount;
+    }
+
+    private Family family(String name, Type type, String help) {
+        Family family = families.get(name);
+        if (family == null) {
+            family = new Family(name, type, help);
+            families.put(name, family);
+        } else if (family.shared) {
+            family = family.copy();
+            families.put(name, family);
+        }
+        return family;
+    }
+
+    /**
+     * The number of samples of a family, 0 if it has none.
+     */
+    int size(String family) {
+        Family f = families.get(family);
+        return f == null ? 0 : f.size;
+    }
+
+    int familyCount() {
+        return families.size();
+    }
+
+    int sampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * The samples as MetricFamilySamples, for Collector.collect().
+     */
+    public List<MetricFamilySamples> toMetricFamilySamples() {
+        List<MetricFamilySamples> mfsList = new ArrayList<MetricFamilySamples>(families.size());
+        for (Family family : families.values()) {
+            List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>(family.size);
+            for (int i = 0; i < family.size; i++) {
+                Series s = family.series[i];
+                samples.add(new MetricFamilySamples.Sample(s.name, s.labelNames, s.labelValues, family.values[i]));
+            }
+            mfsList.add(new MetricFamilySamples(family.name, family.type, family.help, samples));
+        }
+        return mfsList;
+    }
+
+    /**
+     * Write the samples as TextFormat.write004 does.
+     */
+    public void write(Writer writer) throws IOException {
+        StringBuilder help = new StringBuilder();
+        for (Family family : families.values()) {
+            help.setLength(0);
+            escapeHelp(help, family.help);
+            writer.write("# HELP ");
+            writer.write(family.name);
+            writer.write(' ');
+            writer.append(help);
+            writer.write('\n');
+            writer.write("# TYPE ");
+            writer.write(family.name);
+            writer.write(' ');
+            writer.write(typeString(family.type));
+            writer.write('\n');
+            for (int i = 0; i < family.size; i++) {
+                writer.write(family.series[i].text());
+                writer.write(Collector.doubleToGoString(family.values[i]));
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static void escapeHelp(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+    }
+
+    private static void escapeLabelValue(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+    }
+
+    private static String typeString(Type type) {
+        switch (type) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "untyped";
+        }
+    }
+}
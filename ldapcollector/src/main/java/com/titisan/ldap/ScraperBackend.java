@@ -0,0 +1,47 @@
+package com.titisan.ldap;
+
+import java.io.Closeable;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+/**
+ * The LDAP client the scraper runs its searches with.
+ *
+ * Results are handed over as JNDI search results named relative to the search
+ * base, whatever the client library, so the scraper, the incremental state and
+ * the persistent search share the same entry handling.
+ *
+ * Past the deadline of the scrape, searches fail with a
+ * TimeLimitExceededException and their connection is not reused, the server
+ * may still be sending it results.
+ */
+public interface ScraperBackend extends Closeable {
+    /**
+     * Consumer of the results of a search, called once per page of results.
+     */
+    interface ResultHandler {
+        void handle(NamingEnumeration<SearchResult> results) throws NamingException;
+    }
+
+    /**
+     * Run a search and hand its results to handler, in pages of pageSize entries
+     * (RFC 2696) when pageSize is greater than 0.
+     *
+     * @param scope one of the SearchControls scopes.
+     * @param attributes the attributes to return, none if empty.
+     * @param deadline the server time limit of the search, and how long to wait for a connection and the results.
+     */
+    void search(String baseDn, int scope, String filter, String[] attributes, int pageSize, Deadline deadline, ResultHandler handler) throws NamingException;
+
+    /**
+     * Read each of dns with a base scope search on one connection and hand its
+     * results to the handler at the same index, in order. Entries that do not
+     * exist are handed no results.
+     */
+    void readEntries(List<String> dns, String filter, String[] attributes, Deadline deadline, List<ResultHandler> handlers) throws NamingException;
+
+    void close();
+}
@@ -0,0 +1,390 @@
+package com.titisan.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.BindRequest;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.LDAPURL;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+
+/**
+ * Scraper backend on the UnboundID LDAP SDK.
+ *
+ * Searches are sent asynchronously on the connections of an SDK connection pool.
+ * The connection reader thread decodes the entries and queues them while the
+ * scraping thread runs the rules on the entries already received, instead of the
+ * two alternating as with JNDI. Entry reads are pipelined: every request is sent
+ * before the first response is read, so reading many entries takes about one
+ * round trip.
+ *
+ * The deadline is sent as the server time limit of each search, in whole
+ * seconds, and bounds the wait for each entry. The connect timeout is that of
+ * the SDK pool, which opens the connections.
+ */
+public class UnboundIdScraperBackend implements ScraperBackend {
+    private static final Logger logger = Logger.getLogger(UnboundIdScraperBackend.class.getName());
+    // JNDI accepts blanks between the filter components, the SDK does not.
+    private static final Pattern FILTER_BLANKS = Pattern.compile("\\)\\s+([()])");
+
+    private final String ldapUrl;
+    private final String username;
+    private final String password;
+    private final LDAPConnectionPool pool;
+
+    public UnboundIdScraperBackend(String ldapUrl, String username, String password, int maxConnections) throws NamingException {
+        this.ldapUrl = ldapUrl;
+        this.username = username;
+        this.password = password;
+        try {
+            LDAPURL url = new LDAPURL(ldapUrl);
+            LDAPConnectionOptions options = new LDAPConnectionOptions();
+            options.setConnectTimeoutMillis(5000);
+            SocketFactory socketFactory = "ldaps".equalsIgnoreCase(url.getScheme()) ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+            BindRequest bind = null;
+            if (username != null && username.length() != 0 && password != null && password.length() != 0) {
+                bind = new SimpleBindRequest(username, password);
+            }
+            // No initial connection: they are opened on demand by the searches, outside the callers' locks.
+            pool = new LDAPConnectionPool(new SingleServerSet(url.getHost(), url.getPort(), socketFactory, options),
+                bind, 0, Math.max(1, maxConnections), null, false);
+        } catch (LDAPException e) {
+            throw namingException(e);
+        }
+    }
+
+    /**
+     * Whether this backend connects to the given server with the given credentials.
+     */
+    public boolean isFor(String ldapUrl, String username, String password) {
+        return equal(this.ldapUrl, ldapUrl) && equal(this.username, username) && equal(this.password, password);
+    }
+
+    public void search(String baseDn, int scope, String filter, String[] attributes, int pageSize, Deadline deadline, ResultHandler handler) throws NamingException {
+        deadline.check();
+        LDAPConnection connection;
+        try {
+            connection = pool.getConnection();
+        } catch (LDAPException e) {
+            throw namingException(e);
+        }
+        // Not reused after a failure of the handler, the search may still be running.
+        boolean usable = false;
+        try {
+            String normalizedFilter = FILTER_BLANKS.matcher(filter).replaceAll(")$1");
+            String[] returned = attributes.length == 0 ? new String[] {"1.1"} : attributes;
+            ASN1OctetString cookie = null;
+            boolean retried = false;
+            while (true) {
+                QueueingListener listener = new QueueingListener(baseDn, deadline);
+                SearchRequest request = new SearchRequest(listener, baseDn, SearchScope.valueOf(scope), normalizedFilter, returned);
+                setTimeLimit(request, deadline);
+                if (pageSize > 0) {
+                    // Not critical: servers without paging support return everything at once.
+                    request.addControl(new SimplePagedResultsControl(pageSize, cookie, false));
+                }
+                boolean closed;
+                try {
+                    connection.asyncSearch(request);
+                    closed = cookie == null && !retried && closedBeforeResponse(listener);
+                } catch (LDAPException e) {
+                    if (cookie != null || retried || !isRetryable(e, deadline)) {
+                        throw e;
+                    }
+                    closed = true;
+                }
+                if (closed) {
+                    // The pooled connection was dropped by the server, retry once on a new one.
+                    logger.log(Level.FINE, "Pooled LDAP connection failed, reconnecting");
+                    retried = true;
+                    LDAPConnection stale = connection;
+                    connection = null;
+                    connection = pool.replaceDefunctConnection(stale);
+                    continue;
+                }
+                handler.handle(listener);
+                listener.close();
+                com.unboundid.ldap.sdk.SearchResult result = listener.result;
+                if (result.getResultCode() != ResultCode.SUCCESS) {
+                    throw new LDAPSearchException(result);
+                }
+                SimplePagedResultsControl paged = pageSize > 0 ? SimplePagedResultsControl.get(result) : null;
+                cookie = paged == null ? null : paged.getCookie();
+                if (cookie == null || cookie.getValueLength() == 0) {
+                    break;
+                }
+            }
+            usable = true;
+        } catch (LDAPException e) {
+            usable = e.getResultCode().isConnectionUsable();
+            throw namingException(e);
+        } finally {
+            release(connection, usable);
+        }
+    }
+
+    public void readEntries(List<String> dns, String filter, String[] attributes, Deadline deadline, List<ResultHandler> handlers) throws NamingException {
+        deadline.check();
+        LDAPConnection connection;
+        try {
+            connection = pool.getConnection();
+        } catch (LDAPException e) {
+            throw namingException(e);
+        }
+        boolean usable = false;
+        List<QueueingListener> listeners = new ArrayList<QueueingListener>(dns.size());
+        try {
+            String normalizedFilter = FILTER_BLANKS.matcher(filter).replaceAll(")$1");
+            String[] returned = attributes.length == 0 ? new String[] {"1.1"} : attributes;
+            boolean retried = false;
+            while (true) {
+                listeners.clear();
+                boolean closed;
+                try {
+                    for (String dn : dns) {
+                        QueueingListener listener = new QueueingListener(dn, deadline);
+                        SearchRequest request = new SearchRequest(listener, dn, SearchScope.BASE, normalizedFilter, returned);
+                        setTimeLimit(request, deadline);
+                        connection.asyncSearch(request);
+                        listeners.add(listener);
+                    }
+                    closed = !retried && !listeners.isEmpty() && closedBeforeResponse(listeners.get(0));
+                } catch (LDAPException e) {
+                    if (retried || !isRetryable(e, deadline)) {
+                        throw e;
+                    }
+                    closed = true;
+                }
+                if (!closed) {
+                    break;
+                }
+                logger.log(Level.FINE, "Pooled LDAP connection failed, reconnecting");
+                retried = true;
+                LDAPConnection stale = connection;
+                connection = null;
+                connection = pool.replaceDefunctConnection(stale);
+            }
+            LDAPException failure = null;
+            for (int i = 0; i < listeners.size(); i++) {
+                QueueingListener listener = listeners.get(i);
+                handlers.get(i).handle(listener);
+                listener.close();
+                ResultCode resultCode = listener.result.getResultCode();
+                if (resultCode != ResultCode.SUCCESS && resultCode != ResultCode.NO_SUCH_OBJECT && failure == null) {
+                    failure = new LDAPSearchException(listener.result);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            usable = true;
+        } catch (LDAPException e) {
+            usable = e.getResultCode().isConnectionUsable();
+            throw namingException(e);
+        } finally {
+            // Responses to the requests not read yet may still arrive on a connection not usable.
+            release(connection, usable);
+        }
+    }
+
+    /*
+    Return the connection to the pool, or close it if the server may still be
+    sending it responses. After a failure of a handler, the searches are abandoned
+    with the connection instead of waiting for their end.
+    */
+    private void release(LDAPConnection connection, boolean usable) {
+        if (connection == null) {
+            // Lost replacing a closed connection.
+            return;
+        }
+        if (usable) {
+            pool.releaseConnection(connection);
+        } else {
+            pool.releaseDefunctConnection(connection);
+        }
+    }
+
+    /*
+    Whether a search failed because the server had closed its pooled connection,
+    before any of its results was handed out, so that it can be run again.
+    */
+    private static boolean isRetryable(LDAPException e, Deadline deadline) {
+        return !e.getResultCode().isConnectionUsable() && !deadline.isExpired();
+    }
+
+    /*
+    Wait for the first response of a search, and tell whether the connection was
+    closed instead.
+    */
+    private static boolean closedBeforeResponse(QueueingListener listener) throws NamingException {
+        return !listener.hasMore() && !listener.result.getResultCode().isConnectionUsable();
+    }
+
+    public void close() {
+        pool.close();
+    }
+
+    /*
+    Ask the server to stop the search at the deadline, rounded up to the second.
+    */
+    private static void setTimeLimit(SearchRequest request, Deadline deadline) throws NamingException {
+        if (deadline.isSet()) {
+            deadline.check();
+            request.setTimeLimitSeconds((int) Math.min(Integer.MAX_VALUE, (deadline.remainingMillis() + 999) / 1000));
+        }
+    }
+
+    /*
+    Queue the entries as the reader thread receives them, and hand them out as JNDI search results.
+    The SDK requires listeners to be serializable, this one is never serialized.
+    */
+    private static class QueueingListener implements AsyncSearchResultListener, NamingEnumeration<SearchResult> {
+        private static final long serialVersionUID = 1L;
+        private static final Object END = new Object();
+
+        private final String suffix;
+        private final transient Deadline deadline;
+        private final transient BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+        private transient Object next;
+        transient volatile com.unboundid.ldap.sdk.SearchResult result;
+
+        QueueingListener(String baseDn, Deadline deadline) {
+            this.suffix = "," + baseDn;
+            this.deadline = deadline;
+        }
+
+        public void searchEntryReturned(SearchResultEntry entry) {
+            queue.add(entry);
+        }
+
+        public void searchReferenceReturned(SearchResultReference reference) {
+            // Referrals are ignored, as with JNDI.
+        }
+
+        public void searchResultReceived(AsyncRequestID requestId, com.unboundid.ldap.sdk.SearchResult searchResult) {
+            result = searchResult;
+            queue.add(END);
+        }
+
+        public boolean hasMore() throws NamingException {
+            if (next == null) {
+                try {
+                    next = deadline.isSet() ? queue.poll(deadline.remainingMillis(), TimeUnit.MILLISECONDS) : queue.take();
+                    if (next == null) {
+                        throw deadline.exceeded();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedNamingException("Interrupted waiting for LDAP search results");
+                }
+            }
+            return next != END;
+        }
+
+        public SearchResult next() throws NamingException {
+            if (!hasMore()) {
+                throw new NoSuchElementException();
+            }
+            SearchResultEntry entry = (SearchResultEntry) next;
+            next = null;
+            BasicAttributes attributes = new BasicAttributes(true);
+            for (Attribute attribute : entry.getAttributes()) {
+                BasicAttribute basicAttribute = new BasicAttribute(attribute.getName());
+                for (String value : attribute.getValues()) {
+                    basicAttribute.add(value);
+                }
+                attributes.put(basicAttribute);
+            }
+            return new SearchResult(relativeName(entry.getDN()), null, attributes);
+        }
+
+        public boolean hasMoreElements() {
+            try {
+                return hasMore();
+            } catch (NamingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public SearchResult nextElement() {
+            try {
+                return next();
+            } catch (NamingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Wait for the end of the search, until the deadline at most, discarding
+         * the entries not read.
+         */
+        public void close() throws NamingException {
+            while (hasMore()) {
+                next = null;
+            }
+        }
+
+        /*
+        The DN relative to the search base, as JNDI names the results.
+        */
+        private String relativeName(String dn) {
+            if (dn.length() == suffix.length() - 1 && dn.regionMatches(true, 0, suffix, 1, dn.length())) {
+                return "";
+            }
+            if (dn.length() > suffix.length() && dn.regionMatches(true, dn.length() - suffix.length(), suffix, 0, suffix.length())) {
+                return dn.substring(0, dn.length() - suffix.length());
+            }
+            return dn;
+        }
+    }
+
+    private static NamingException namingException(LDAPException e) {
+        NamingException ne = e.getResultCode() == ResultCode.NO_SUCH_OBJECT
+            ? new NameNotFoundException(e.getExceptionMessage())
+            : e.getResultCode() == ResultCode.TIME_LIMIT_EXCEEDED
+            ? new TimeLimitExceededException(e.getExceptionMessage())
+            : e.getResultCode().isConnectionUsable()
+            ? new NamingException(e.getExceptionMessage())
+            : new CommunicationException(e.getExceptionMessage());
+        ne.setRootCause(e);
+        return ne;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
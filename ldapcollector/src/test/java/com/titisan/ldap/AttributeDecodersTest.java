@@ -0,0 +1,70 @@
+package com.titisan.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Unit test for AttributeDecoders.
+ */
+public class AttributeDecodersTest {
+
+    @Test
+    public void testNumbersAsDoubleValueOf() {
+        String[] numbers = {"0", "15931071", "-42", "+7", " 12 ", "123456789012345678", "1234567890123456789012",
+            "0.25", "-.5", "3.", "1e3", "2.5E-2", "-0", "NaN", "-Infinity"};
+        for (String number : numbers) {
+            assertEquals(number, Double.valueOf(number), AttributeDecoders.parseNumber(number));
+        }
+    }
+
+    @Test
+    public void testTextIsNotANumber() {
+        String[] texts = {"", " ", "-", ".", "e3", "1e", "1.2.3", "12abc", "OpenLDAP: slapd 2.4.44", "1 2", "Infinityx"};
+        for (String text : texts) {
+            assertNull(text, AttributeDecoders.parseNumber(text));
+        }
+    }
+
+    @Test
+    public void testGeneralizedTime() {
+        assertEquals(1506229189.0, AttributeDecoders.parseGeneralizedTime("20170924045949Z"), .001);
+        assertEquals(0.0, AttributeDecoders.parseGeneralizedTime("19700101000000Z"), .001);
+        assertEquals(951782400.0, AttributeDecoders.parseGeneralizedTime("20000229000000Z"), .001);
+        assertEquals(1506229189.5, AttributeDecoders.parseGeneralizedTime("20170924045949.5Z"), .001);
+        assertEquals(1506229189.0, AttributeDecoders.parseGeneralizedTime("20170924065949+0200"), .001);
+        assertEquals(1506229189.0, AttributeDecoders.parseGeneralizedTime("20170924035949-01"), .001);
+        assertEquals(1506229140.0, AttributeDecoders.parseGeneralizedTime("201709240459Z"), .001);
+        assertEquals(1506227400.0, AttributeDecoders.parseGeneralizedTime("2017092404,5Z"), .001);
+        assertNull(AttributeDecoders.parseGeneralizedTime("20170924045949"));
+        assertNull(AttributeDecoders.parseGeneralizedTime("20170229000000Z"));
+        assertNull(AttributeDecoders.parseGeneralizedTime("20171324000000Z"));
+        assertNull(AttributeDecoders.parseGeneralizedTime("20170924045949.Z"));
+        assertNull(AttributeDecoders.parseGeneralizedTime("2017"));
+        assertNull(AttributeDecoders.parseGeneralizedTime("15931071"));
+    }
+
+    @Test
+    public void testRegistry() {
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("monitoredInfo", "ignore");
+        names.put("hasSubordinates", "boolean");
+        AttributeDecoders decoders = new AttributeDecoders(names);
+        assertNull(decoders.get("monitoredinfo").decode("16"));
+        assertEquals(1.0, decoders.get("hasSubordinates").decode("TRUE"), .001);
+        assertEquals(0.0, decoders.get("hasSubordinates").decode("FALSE"), .001);
+        assertNull(decoders.get("hasSubordinates").decode("maybe"));
+        assertEquals(16.0, decoders.get("monitorCounter").decode("16"), .001);
+        assertEquals(1506229189.0, decoders.get("MODIFYTIMESTAMP").decode("20170924045949Z"), .001);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownDecoder() {
+        new AttributeDecoders(Collections.singletonMap("monitorCounter", "integer"));
+    }
+}
@@ -2,26 +2,54 @@ package com.titisan.ldap;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.naming.ldap.LdapContext;
+
 import com.unboundid.ldap.listener.InMemoryDirectoryServer;
 import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
 import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
 import com.unboundid.ldif.LDIFReader;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
 import com.unboundid.ldap.sdk.OperationType;
 
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 
 /**
  * Unit test for simple LdapCollectorTest.
@@ -38,15 +66,74 @@ public class LdapCollectorTest {
         logger.log(Level.FINE, msg);
     }
   
+    /**
+     * Counts the entries returned by incremental scrapes.
+     */
+    private static class ChangedEntriesCounter extends InMemoryOperationInterceptor {
+        final AtomicInteger entries = new AtomicInteger();
+
+        @Override
+        public void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+            if (entry.getRequest().getFilter().toString().contains("modifyTimestamp>=")) {
+                entries.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Counts and slows down the searches for the cn=* entries, which only the coalescing test asks for.
+     */
+    private static class SlowSearchCounter extends InMemoryOperationInterceptor {
+        final AtomicInteger searches = new AtomicInteger();
+
+        @Override
+        public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+            if (request.getRequest().getFilter().toString().contains("(cn=*)")) {
+                searches.incrementAndGet();
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Slows down the entries of the searches for (entryDN=*), which only the deadline tests ask for.
+     */
+    private static class SlowEntries extends InMemoryOperationInterceptor {
+        @Override
+        public void processSearchEntry(InMemoryInterceptedSearchEntry entry) {
+            if (entry.getRequest().getFilter().toString().contains("(entryDN=*)")) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static final ChangedEntriesCounter changedEntries = new ChangedEntriesCounter();
+    private static final SlowSearchCounter slowSearches = new SlowSearchCounter();
+    private static final SlowEntries slowEntries = new SlowEntries();
+    private static final PersistentSearchStandIn persistentSearches = new PersistentSearchStandIn();
+
     private static void startLDAPServer() throws Exception {
         InMemoryDirectoryServerConfig serverConfig = new InMemoryDirectoryServerConfig("cn=Monitor");
         serverConfig.addAdditionalBindCredentials("cn=Directory Manager", "password");
         serverConfig.setAuthenticationRequiredOperationTypes(OperationType.SEARCH);
         // Do not set any schema
         serverConfig.setSchema(null);
+        serverConfig.addInMemoryOperationInterceptor(changedEntries);
+        serverConfig.addInMemoryOperationInterceptor(persistentSearches);
+        serverConfig.addInMemoryOperationInterceptor(slowSearches);
+        serverConfig.addInMemoryOperationInterceptor(slowEntries);
         serverConfig.setListenerConfigs(
             InMemoryListenerConfig.createLDAPConfig("nonEncrypted389", 389));
         server = new InMemoryDirectoryServer(serverConfig);
+        persistentSearches.setServer(server);
 
         // Populate data in the cn=Monitor.
         log("Populating CN Monitor data from LDIF file.");
@@ -67,6 +154,7 @@ public class LdapCollectorTest {
     }
     @AfterClass
     public static void oneTimeTearDown() throws Exception {
+        persistentSearches.close();
         if (server != null)
             server.shutDown(true); 
     }
@@ -217,6 +305,17 @@ public class LdapCollectorTest {
       assertEquals(15931071, registry.getSampleValue("SecondConnections_Total", new String[]{}, new String[]{}), .001);
     }
 
+    @Test
+    public void rulesRunInOrderAcrossPrefixes() throws Exception {
+        LdapCollector lc = new LdapCollector(
+              "\n---\nusername: cn=Directory Manager\npassword: password\nrules:\n- pattern: `.*cn=Connections`\n  name: any_connections\n  continue: true\n- pattern: `cn=Total,cn=Connections`\n  name: total\n- pattern: `cn=(.+),cn=Connections`\n  name: connections_$1\n- pattern: `.+`\n  name: other".replace('`','"')).register(registry);
+      assertEquals(15931071, registry.getSampleValue("total"), .001);
+      assertNull(registry.getSampleValue("connections_Total"));
+      assertEquals(45.0, registry.getSampleValue("connections_Current"), .001);
+      assertNotNull(registry.getSampleValue("any_connections"));
+      assertNotNull(registry.getSampleValue("other"));
+    }
+
     @Test
     public void stopsOnEmptyName() throws Exception {
         LdapCollector lc = new LdapCollector(
@@ -335,6 +434,840 @@ public class LdapCollectorTest {
         assertEquals(0.001, registry.getSampleValue("connections_total"), .001);
     }
 
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password").register(registry);
+        lc.collect();
+        double connects = CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_pool_connects_total");
+        double reuses = CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_pool_reuses_total");
+        lc.collect();
+        lc.collect();
+        assertEquals(connects, CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_pool_connects_total"), .001);
+        assertEquals(reuses + 2, CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_pool_reuses_total"), .001);
+    }
+
+    private static double phaseCount(String phase) {
+        Double count = CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_scrape_phase_duration_seconds_count",
+            new String[]{"phase"}, new String[]{phase});
+        return count == null ? 0 : count;
+    }
+
+    @Test
+    public void testScrapeInstrumentation() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password");
+        CollectorRegistry r = CollectorRegistry.defaultRegistry;
+        double search = phaseCount("search");
+        double enumeration = phaseCount("enumeration");
+        double rules = phaseCount("rules");
+        double entries = r.getSampleValue("ldapexporter_entries_scraped_total");
+        double attributes = r.getSampleValue("ldapexporter_attributes_scraped_total");
+        double nonNumeric = r.getSampleValue("ldapexporter_attributes_non_numeric_total");
+        double samples = r.getSampleValue("ldapexporter_samples_emitted_total");
+        double families = r.getSampleValue("ldapexporter_metric_families_emitted_total");
+
+        List<Collector.MetricFamilySamples> mfsList = lc.collect();
+
+        assertEquals(search + 1, phaseCount("search"), .001);
+        assertEquals(enumeration + 1, phaseCount("enumeration"), .001);
+        assertEquals(rules + 1, phaseCount("rules"), .001);
+        // Only the entries with one of the returned attributes are fetched.
+        assertEquals(entries + 49, r.getSampleValue("ldapexporter_entries_scraped_total"), .001);
+        // Some entries have monitoredInfo, which is text.
+        assertTrue(r.getSampleValue("ldapexporter_attributes_non_numeric_total") > nonNumeric);
+        double numeric = r.getSampleValue("ldapexporter_attributes_scraped_total") - attributes
+            - (r.getSampleValue("ldapexporter_attributes_non_numeric_total") - nonNumeric);
+        // The exporter's own families are not counted.
+        int familyCount = 0;
+        int sampleCount = 0;
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            if (!mfs.name.startsWith("ldap_scrape_") && !mfs.name.startsWith("ldapexporter_")) {
+                familyCount += 1;
+                sampleCount += mfs.samples.size();
+            }
+        }
+        assertEquals(sampleCount, numeric, .001);
+        assertEquals(samples + sampleCount, r.getSampleValue("ldapexporter_samples_emitted_total"), .001);
+        assertEquals(families + familyCount, r.getSampleValue("ldapexporter_metric_families_emitted_total"), .001);
+    }
+
+    @Test
+    public void testRuleProfile() throws Exception {
+        File configFile = File.createTempFile("ldapexporter", ".yml");
+        configFile.deleteOnExit();
+        FileWriter fw = new FileWriter(configFile);
+        fw.write(("---\nusername: cn=Directory Manager\npassword: password\nrules:\n"
+            + "- pattern: `cn=(Total|Current),cn=Connections`\n  name: connections_$1\n"
+            + "- pattern: `cn=Bind,cn=Operations_(.+)`\n  name: bind\n  value: not_a_number\n"
+            + "- pattern: `.*`\n").replace('`','"'));
+        fw.close();
+        LdapCollector lc = new LdapCollector(configFile).register(registry);
+        lc.collect();
+
+        String[] labels = new String[]{"rule", "pattern"};
+        String[] first = new String[]{"0", "cn=(Total|Current),cn=Connections"};
+        String[] second = new String[]{"1", "cn=Bind,cn=Operations_(.+)"};
+        String[] last = new String[]{"2", ".*"};
+        assertEquals(2.0, registry.getSampleValue("ldapexporter_rule_matched_total", labels, first), .001);
+        assertTrue(registry.getSampleValue("ldapexporter_rule_tested_total", labels, first) > 2.0);
+        assertEquals(2.0, registry.getSampleValue("ldapexporter_rule_matched_total", labels, second), .001);
+        assertEquals(2.0, registry.getSampleValue("ldapexporter_rule_value_failures_total", labels, second), .001);
+        // Entries stopped by an earlier rule never reach the last one.
+        assertEquals(registry.getSampleValue("ldapexporter_rule_tested_total", labels, last),
+            registry.getSampleValue("ldapexporter_rule_matched_total", labels, last), .001);
+        assertTrue(registry.getSampleValue("ldapexporter_rule_seconds_total", labels, last) > 0);
+
+        String profile = lc.ruleProfile();
+        assertEquals(4, profile.split("\n").length);
+        assertTrue(profile.contains("cn=Bind,cn=Operations_(.+)"));
+
+        // The profile starts over with the new config, instead of adding up to 4.
+        double reloads = reloads();
+        configFile.setLastModified(configFile.lastModified() + 2000);
+        waitForReload(reloads);
+        assertEquals(2.0, registry.getSampleValue("ldapexporter_rule_value_failures_total", labels, second), .001);
+    }
+
+    @Test
+    public void testReconnectAfterServerClosedConnection() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password").register(registry);
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        server.shutDown(true);
+        server.startListening();
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        assertEquals(45.0, registry.getSampleValue("_Current_Connections"), .001);
+    }
+
+    @Test
+    public void testConnectionPoolRebuiltOnReload() throws Exception {
+        File configFile = File.createTempFile("ldapexporter", ".yml");
+        configFile.deleteOnExit();
+        FileWriter fw = new FileWriter(configFile);
+        fw.write("---\nusername: cn=Directory Manager\npassword: password\n");
+        fw.close();
+        LdapCollector lc = new LdapCollector(configFile).register(registry);
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+
+        double reloads = reloads();
+        fw = new FileWriter(configFile);
+        fw.write("---\nusername: cn=Directory Manager\npassword: wrongpassword\n");
+        fw.close();
+        configFile.setLastModified(configFile.lastModified() + 2000);
+        waitForReload(reloads);
+        assertEquals(1.0, registry.getSampleValue("ldap_scrape_error"), .001);
+    }
+
+    private static double reloads() {
+        return CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_config_reload_success_total")
+            + CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_config_reload_failure_total");
+    }
+
+    /**
+     * Wait for the config watcher to reload a config.
+     */
+    private static void waitForReload(double reloadsBefore) throws InterruptedException {
+        for (int i = 0; i < 100 && reloads() <= reloadsBefore; i++) {
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void testConfigReloadedInBackground() throws Exception {
+        File configFile = File.createTempFile("ldapexporter", ".yml");
+        configFile.deleteOnExit();
+        FileWriter fw = new FileWriter(configFile);
+        fw.write("---\nusername: cn=Directory Manager\npassword: password\nrules:\n- pattern: `cn=Total,cn=Connections`\n  name: before\n".replace('`','"'));
+        fw.close();
+        LdapCollector lc = new LdapCollector(configFile).register(registry);
+        assertNotNull(registry.getSampleValue("before"));
+
+        double reloads = reloads();
+        double reloadDurations = CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_config_reload_duration_seconds_count");
+        fw = new FileWriter(configFile);
+        fw.write("---\nusername: cn=Directory Manager\npassword: password\nrules:\n- pattern: `cn=Total,cn=Connections`\n  name: after\n".replace('`','"'));
+        fw.close();
+        configFile.setLastModified(configFile.lastModified() + 2000);
+        // Reloaded without any scrape asking for it.
+        waitForReload(reloads);
+        assertTrue(CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_config_reload_duration_seconds_count") > reloadDurations);
+        assertNull(registry.getSampleValue("before"));
+        assertNotNull(registry.getSampleValue("after"));
+    }
+
+    @Test
+    public void testConfigReloadDoesNotTakeTheCollectorLock() throws Exception {
+        File configFile = File.createTempFile("ldapexporter", ".yml");
+        configFile.deleteOnExit();
+        FileWriter fw = new FileWriter(configFile);
+        fw.write("---\nusername: cn=Directory Manager\npassword: password\n");
+        fw.close();
+        LdapCollector lc = new LdapCollector(configFile);
+        double reloads = reloads();
+        configFile.setLastModified(configFile.lastModified() + 2000);
+        // As a scrape getting its connections does.
+        synchronized (lc) {
+            waitForReload(reloads);
+            assertTrue(reloads() > reloads);
+        }
+    }
+
+    @Test
+    public void testBackgroundScrapeServesSnapshot() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nscrapeIntervalSeconds: 60").register(registry);
+        assertEquals(45.0, registry.getSampleValue("_Current_Connections"), .001);
+        double duration = registry.getSampleValue("ldap_scrape_duration_seconds");
+        // The second collect is served from the same snapshot.
+        assertEquals(duration, registry.getSampleValue("ldap_scrape_duration_seconds"), 0.0);
+        assertNotNull(registry.getSampleValue("ldap_snapshot_age_seconds"));
+        assertTrue(registry.getSampleValue("ldap_last_successful_refresh_timestamp_seconds") > 0);
+    }
+
+    @Test
+    public void testBackgroundScrapeRefreshes() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nscrapeIntervalSeconds: 1").register(registry);
+        double refreshed = registry.getSampleValue("ldap_last_successful_refresh_timestamp_seconds");
+        Thread.sleep(2500);
+        assertTrue(registry.getSampleValue("ldap_last_successful_refresh_timestamp_seconds") > refreshed);
+        assertTrue(registry.getSampleValue("ldap_snapshot_age_seconds") < 2.0);
+    }
+
+    @Test
+    public void testBackgroundScrapeKeepsLastCompleteSnapshot() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nscrapeIntervalSeconds: 1").register(registry);
+        double refreshed = registry.getSampleValue("ldap_last_successful_refresh_timestamp_seconds");
+        server.shutDown(true);
+        try {
+            // Let a refresh fail.
+            Thread.sleep(1500);
+            assertEquals(refreshed, registry.getSampleValue("ldap_last_successful_refresh_timestamp_seconds"), 0.0);
+            assertTrue(registry.getSampleValue("ldap_snapshot_age_seconds") > 1.0);
+            assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+            assertEquals(45.0, registry.getSampleValue("_Current_Connections"), .001);
+        } finally {
+            server.startListening();
+        }
+    }
+
+    @Test
+    public void testSampleFamiliesWriteTextFormat() throws Exception {
+        // Backslashes are doubled for the YAML and for Matcher.replaceAll.
+        LdapCollector lc = new LdapCollector(
+            "\n---\nusername: cn=Directory Manager\npassword: password\nrules:\n- pattern: `cn=Total,cn=(Connections)`\n  name: connections_total\n  help: \"back\\\\\\\\slash $1\\nnewline\"\n  labels:\n    l: 'a`b\\\\c'\n- pattern: `.*`".replace('`','"'));
+        SampleFamilies families = lc.collectFamilies();
+        StringWriter streamed = new StringWriter();
+        families.write(streamed);
+        StringWriter expected = new StringWriter();
+        TextFormat.write004(expected, Collections.enumeration(families.toMetricFamilySamples()));
+        assertEquals(expected.toString(), streamed.toString());
+        assertTrue(streamed.toString().contains("# HELP connections_total back\\\\slash Connections\\nnewline\n"));
+        assertTrue(streamed.toString().contains("connections_total{l=\"a\\\"b\\\\c\",} 1.5931071E7\n"));
+    }
+
+    @Test
+    public void testPagedSearch() throws Exception {
+        CollectorRegistry unpagedRegistry = new CollectorRegistry();
+        LdapCollector unpaged = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password").register(unpagedRegistry);
+        LdapCollector paged = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\npageSize: 3").register(registry);
+
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        assertEquals(15931071, registry.getSampleValue("_Total_Connections"), .001);
+        assertEquals(16.0, registry.getSampleValue("_Max_Threads"), .001);
+        assertEquals(unpaged.collect().size(), paged.collect().size());
+    }
+
+    private static Map<String, Double> sampleValues(LdapCollector lc) {
+        return sampleValues(lc.collect());
+    }
+
+    private static Map<String, Double> sampleValues(List<Collector.MetricFamilySamples> mfsList) {
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            if (mfs.name.startsWith("ldap_scrape_") || mfs.name.startsWith("ldapexporter_")) {
+                continue;
+            }
+            for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+                values.put(sample.name + sample.labelNames + sample.labelValues, sample.value);
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testParallelScrapeMatchesSequential() throws Exception {
+        LdapCollector sequential = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nextraAttributesToReturn:\n- olmReceivedOps");
+        LdapCollector parallel = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nextraAttributesToReturn:\n- olmReceivedOps\nparallelScrapeThreads: 4").register(registry);
+
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        assertEquals(269.0, registry.getSampleValue("_Bind_Operations_Load_Balancer_Backends"), .001);
+        Map<String, Double> expected = sampleValues(sequential);
+        expected.remove("_Current_Connections[][]");
+        Map<String, Double> actual = sampleValues(parallel);
+        actual.remove("_Current_Connections[][]");
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testParallelScrapeWrongBaseDN() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nbaseDN: cn=WrongMonitor\nparallelScrapeThreads: 4").register(registry);
+        assertEquals(1.0, registry.getSampleValue("ldap_scrape_error"), .001);
+    }
+
+    @Test
+    public void testIncrementalScrape() throws Exception {
+        LdapCollector full = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password");
+        LdapCollector incremental = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nincrementalScrape: true");
+        Map<String, Double> expected = sampleValues(full);
+
+        // The first scrape fetches everything.
+        int changed = changedEntries.entries.get();
+        assertEquals(expected, sampleValues(incremental));
+        assertEquals(changed, changedEntries.entries.get());
+
+        // Then only the newest entries and those without a modifyTimestamp.
+        assertEquals(expected, sampleValues(incremental));
+        int fetched = changedEntries.entries.get() - changed;
+        assertTrue(fetched > 0 && fetched < 124);
+
+        server.modify("cn=Current,cn=Connections,cn=Monitor", new Modification(ModificationType.REPLACE, "monitorCounter", "50"));
+        try {
+            changed = changedEntries.entries.get();
+            assertEquals(50.0, sampleValues(incremental).get("_Current_Connections[][]"), .001);
+            // Static entries are no longer fetched, the modified one is.
+            fetched = changedEntries.entries.get() - changed;
+            assertTrue(fetched > 0 && fetched < 20);
+            assertEquals(expected.size(), sampleValues(incremental).size());
+        } finally {
+            server.modify("cn=Current,cn=Connections,cn=Monitor", new Modification(ModificationType.REPLACE, "monitorCounter", "45"));
+        }
+    }
+
+    @Test
+    public void testIncrementalScrapeWithTimestampAttribute() throws Exception {
+        String config = "---\nusername: cn=Directory Manager\npassword: password\nextraAttributesToReturn:\n- modifyTimestamp";
+        Map<String, Double> expected = sampleValues(new LdapCollector(config));
+        assertEquals(1506229189.0, expected.get("_Max_Threads_modifyTimestamp[][]"), .001);
+        LdapCollector incremental = new LdapCollector(config + "\nincrementalScrape: true");
+        assertEquals(expected, sampleValues(incremental));
+        // The configured timestamp is kept in the state, and still finds the changes.
+        int changed = changedEntries.entries.get();
+        assertEquals(expected, sampleValues(incremental));
+        int fetched = changedEntries.entries.get() - changed;
+        assertTrue(fetched > 0 && fetched < 124);
+    }
+
+    @Test
+    public void testIncrementalScrapeWithoutResyncInterval() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nincrementalScrape: true\nfullResyncIntervalSeconds: 0");
+        int changed = changedEntries.entries.get();
+        lc.collect();
+        lc.collect();
+        assertEquals(changed, changedEntries.entries.get());
+    }
+
+    /**
+     * Poll the collector until the sample has the expected value, null for no sample.
+     */
+    private static void awaitSample(LdapCollector lc, String sample, Double expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        Double value = sampleValues(lc).get(sample);
+        while (!(expected == null ? value == null : expected.equals(value)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            value = sampleValues(lc).get(sample);
+        }
+        assertEquals(expected, value);
+    }
+
+    @Test
+    public void testPooledConnectionsReusedWithTheSameReadTimeout() throws Exception {
+        LdapConnectionPool pool = new LdapConnectionPool("ldap://127.0.0.1:389", "cn=Directory Manager", "password", 2, 60000L);
+        try {
+            LdapContext timed = pool.borrow(Deadline.after(60000L));
+            pool.release(timed);
+            // Neither a persistent search nor a scrape without a deadline gets its read timeout.
+            LdapContext own = pool.open();
+            assertNotSame(timed, own);
+            pool.discard(own);
+            LdapContext untimed = pool.borrow();
+            assertNotSame(timed, untimed);
+            pool.release(untimed);
+            double reuses = LdapConnectionPool.reuses.get();
+            pool.release(pool.borrow(Deadline.after(60000L)));
+            assertEquals(reuses + 1, LdapConnectionPool.reuses.get(), .001);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPersistentSearch() throws Exception {
+        LdapCollector polled = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password");
+        LdapCollector pushed = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\npersistentSearch: true");
+        int searches = persistentSearches.searches.get();
+        assertEquals(sampleValues(polled), sampleValues(pushed));
+
+        LDAPConnection connection = server.getConnection();
+        try {
+            connection.modify("cn=Current,cn=Connections,cn=Monitor", new Modification(ModificationType.REPLACE, "monitorCounter", "50"));
+            try {
+                awaitSample(pushed, "_Current_Connections[][]", 50.0);
+            } finally {
+                connection.modify("cn=Current,cn=Connections,cn=Monitor", new Modification(ModificationType.REPLACE, "monitorCounter", "45"));
+            }
+            awaitSample(pushed, "_Current_Connections[][]", 45.0);
+
+            connection.add("dn: cn=Pushed,cn=Connections,cn=Monitor", "objectClass: monitorCounterObject", "cn: Pushed", "monitorCounter: 7");
+            try {
+                awaitSample(pushed, "_Pushed_Connections[][]", 7.0);
+            } finally {
+                connection.delete("cn=Pushed,cn=Connections,cn=Monitor");
+            }
+            awaitSample(pushed, "_Pushed_Connections[][]", null);
+        } finally {
+            connection.close();
+        }
+        // Scrapes are served from the table, the search is only started once.
+        assertEquals(searches + 1, persistentSearches.searches.get());
+        assertEquals(sampleValues(polled), sampleValues(pushed));
+    }
+
+    @Test
+    public void testUnboundIdBackend() throws Exception {
+        Map<String, Double> expected = sampleValues(new LdapCollector("---\nusername: cn=Directory Manager\npassword: password"));
+        String config = "---\nusername: cn=Directory Manager\npassword: password\nbackend: unboundid";
+        assertEquals(expected, sampleValues(new LdapCollector(config)));
+        assertEquals(expected, sampleValues(new LdapCollector(config + "\npageSize: 10")));
+        assertEquals(expected, sampleValues(new LdapCollector(config + "\nparallelScrapeThreads: 4")));
+        assertEquals(expected, sampleValues(new LdapCollector(config + "\nincrementalScrape: true")));
+    }
+
+    @Test
+    public void testUnboundIdBackendReconnectAfterServerClosedConnection() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nbackend: unboundid\nparallelScrapeThreads: 4").register(registry);
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        server.shutDown(true);
+        server.startListening();
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        assertEquals(45.0, registry.getSampleValue("_Current_Connections"), .001);
+    }
+
+    @Test
+    public void testUnboundIdBackendConnectsOnDemand() throws Exception {
+        // Accepts connections but never answers.
+        ServerSocket silent = new ServerSocket(0);
+        try {
+            long start = System.nanoTime();
+            UnboundIdScraperBackend backend = new UnboundIdScraperBackend("ldap://127.0.0.1:" + silent.getLocalPort(), "cn=Directory Manager", "password", 2);
+            backend.close();
+            assertTrue(System.nanoTime() - start < 1000000000L);
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testUnboundIdBackendWrongBaseDN() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nbackend: unboundid\nbaseDN: cn=Nothing").register(registry);
+        assertEquals(1.0, registry.getSampleValue("ldap_scrape_error"), .001);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownBackend() throws Exception {
+        new LdapCollector("---\nbackend: ldapjdk");
+    }
+
+    @Test
+    public void testConcurrentCollectsShareOneScrape() throws Exception {
+        final LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nwhitelistEntryNames:\n- cn=*");
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Collector.MetricFamilySamples>>> results = new ArrayList<Future<List<Collector.MetricFamilySamples>>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<List<Collector.MetricFamilySamples>>() {
+                    public List<Collector.MetricFamilySamples> call() throws Exception {
+                        start.await();
+                        return lc.collect();
+                    }
+                }));
+            }
+            int searches = slowSearches.searches.get();
+            double coalesced = LdapCollector.collectCoalesced.get();
+            start.countDown();
+            int size = results.get(0).get().size();
+            for (Future<List<Collector.MetricFamilySamples>> result : results) {
+                assertEquals(size, result.get().size());
+            }
+            assertEquals(searches + 1, slowSearches.searches.get());
+            assertEquals(coalesced + threads - 1, LdapCollector.collectCoalesced.get(), .001);
+        } finally {
+            executor.shutdown();
+        }
+
+        // The next collect scrapes again.
+        int searches = slowSearches.searches.get();
+        lc.collect();
+        assertEquals(searches + 1, slowSearches.searches.get());
+    }
+
+    @Test
+    public void testCollectWaitingForASharedScrapeKeepsItsDeadline() throws Exception {
+        final LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nwhitelistEntryNames:\n- cn=*");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            int searches = slowSearches.searches.get();
+            Future<SampleFamilies> leader = executor.submit(new Callable<SampleFamilies>() {
+                public SampleFamilies call() throws Exception {
+                    return lc.collectFamilies();
+                }
+            });
+            while (slowSearches.searches.get() == searches) {
+                Thread.sleep(10);
+            }
+            // A 150 ms deadline, the shared scrape takes 500.
+            long start = System.nanoTime();
+            List<Collector.MetricFamilySamples> waited = lc.collectFamilies(0.3).toMetricFamilySamples();
+            assertTrue("Waited " + (System.nanoTime() - start) / 1000000L + " ms", System.nanoTime() - start < 400000000L);
+            assertTrue(sampleValues(waited).isEmpty());
+            Map<String, Double> status = new HashMap<String, Double>();
+            for (Collector.MetricFamilySamples mfs : waited) {
+                status.put(mfs.name, mfs.samples.get(0).value);
+            }
+            assertEquals(1.0, status.get("ldap_scrape_partial"), .001);
+            assertEquals(0.0, status.get("ldap_scrape_error"), .001);
+            // The scrape itself goes on, for the request that started it.
+            assertTrue(sampleValues(leader.get().toMetricFamilySamples()).size() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        Map<String, Double> expected = sampleValues(new LdapCollector("---\nusername: cn=Directory Manager\npassword: password"));
+        LdapCollector prober = new LdapCollector("---\nldapUrl: ldap://127.0.0.1:399\nmodules:\n  monitor:\n    username: cn=Directory Manager\n    password: password\n    probeTargets:\n    - 'ldap://127\\.0\\.0\\.1:389'");
+        assertEquals(expected, sampleValues(prober.probe("ldap://127.0.0.1:389", "monitor")));
+        // Connections are reused by the next probes of the target.
+        double connects = LdapConnectionPool.connects.get();
+        assertEquals(expected, sampleValues(prober.probe("ldap://127.0.0.1:389", "monitor")));
+        assertEquals(connects, LdapConnectionPool.connects.get(), .001);
+    }
+
+    @Test
+    public void testProbeUnboundIdBackend() throws Exception {
+        Map<String, Double> expected = sampleValues(new LdapCollector("---\nusername: cn=Directory Manager\npassword: password"));
+        LdapCollector prober = new LdapCollector("---\nmodules:\n  monitor:\n    backend: unboundid\n    username: cn=Directory Manager\n    password: password\n    probeTargets:\n    - 'ldap://127\\.0\\.0\\.1:389'");
+        double connects = LdapConnectionPool.connects.get();
+        assertEquals(expected, sampleValues(prober.probe("ldap://127.0.0.1:389", "monitor")));
+        assertEquals(connects, LdapConnectionPool.connects.get(), .001);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testProbeRequiresModule() throws Exception {
+        new LdapCollector("---\nusername: cn=Directory Manager\npassword: password").probe("ldap://127.0.0.1:389", null);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testProbeTargetNotAllowed() throws Exception {
+        new LdapCollector("---\nmodules:\n  monitor:\n    probeTargets:\n    - 'ldap://127\\.0\\.0\\.1:389'").probe("ldap://localhost:389", "monitor");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testProbeWithCredentialsRequiresTargets() throws Exception {
+        new LdapCollector("---\nmodules:\n  monitor:\n    username: cn=Directory Manager\n    password: password").probe("ldap://127.0.0.1:389", "monitor");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testProbeUnknownModule() throws Exception {
+        new LdapCollector("---\nmodules:\n  monitor: {}").probe("ldap://127.0.0.1:389", "other");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testProbeBadTarget() throws Exception {
+        new LdapCollector("---\nmodules:\n  monitor: {}").probe("http://127.0.0.1:389", "monitor");
+    }
+
+    @Test
+    public void testProbesPerTargetLimit() throws Exception {
+        final LdapCollector prober = new LdapCollector("---\nprobeMaxConcurrentPerTarget: 1\nmodules:\n  slow:\n    username: cn=Directory Manager\n    password: password\n    probeTargets:\n    - 'ldap://(127\\.0\\.0\\.1|localhost):389'\n    whitelistEntryNames:\n    - cn=*");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            int searches = slowSearches.searches.get();
+            Future<List<Collector.MetricFamilySamples>> slow = executor.submit(new Callable<List<Collector.MetricFamilySamples>>() {
+                public List<Collector.MetricFamilySamples> call() throws Exception {
+                    return prober.probe("ldap://127.0.0.1:389", "slow");
+                }
+            });
+            while (slowSearches.searches.get() == searches) {
+                Thread.sleep(10);
+            }
+            double rejected = LdapCollector.probesRejected.get();
+            try {
+                prober.probe("ldap://127.0.0.1:389", "slow");
+                fail("Expected RejectedExecutionException");
+            } catch (RejectedExecutionException e) {
+                assertEquals(rejected + 1, LdapCollector.probesRejected.get(), .001);
+            }
+            // Other targets have their own limit.
+            prober.probe("ldap://localhost:389", "slow");
+            slow.get();
+            prober.probe("ldap://127.0.0.1:389", "slow");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimestampAttributes() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nextraAttributesToReturn:\n- createTimestamp").register(registry);
+        assertEquals(1506229189.0, registry.getSampleValue("_Max_Threads_createTimestamp"), .001);
+        assertEquals(16.0, registry.getSampleValue("_Max_Threads_monitoredInfo"), .001);
+    }
+
+    @Test
+    public void testAttributeDecoders() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nextraAttributesToReturn:\n- createTimestamp\nattributeDecoders:\n  createTimestamp: ignore").register(registry);
+        assertNull(registry.getSampleValue("_Max_Threads_createTimestamp"));
+        assertEquals(16.0, registry.getSampleValue("_Max_Threads_monitoredInfo"), .001);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownAttributeDecoder() throws Exception {
+        new LdapCollector("---\nattributeDecoders:\n  monitorCounter: integer");
+    }
+
+    @Test
+    public void testQueryPlanOnlyFetchesRuleEntries() throws Exception {
+        String rules = "rules:\n- pattern: `cn=Current,cn=(.+)`\n  name: ldap_current_$1\n- pattern: `cn=Max,cn=Threads`\n  name: ldap_threads_max".replace('`', '"');
+        // A last rule producing nothing for every other entry keeps the plan from filtering.
+        LdapCollector unplanned = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\n" + rules + "\n- pattern: `.*`\n  name: ``".replace('`', '"'));
+        LdapCollector planned = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\n" + rules);
+        assertTrue(planned.queryPlan(), planned.queryPlan().contains("(|(cn=Current)(cn=Max))"));
+        assertTrue(unplanned.queryPlan(), unplanned.queryPlan().contains("no literal RDN, any entry"));
+
+        double entries = LdapCollector.entriesScraped.get();
+        Map<String, Double> expected = sampleValues(unplanned);
+        double unplannedEntries = LdapCollector.entriesScraped.get() - entries;
+        entries = LdapCollector.entriesScraped.get();
+        assertEquals(expected, sampleValues(planned));
+        assertEquals(2, LdapCollector.entriesScraped.get() - entries, .001);
+        // Of the 124 entries, the server only returns those with a returned attribute.
+        assertEquals(49, unplannedEntries, .001);
+    }
+
+    @Test
+    public void testTargetEntryDNs() throws Exception {
+        Map<String, Double> expected = new HashMap<String, Double>();
+        for (Map.Entry<String, Double> sample : sampleValues(new LdapCollector("---\nusername: cn=Directory Manager\npassword: password")).entrySet()) {
+            if (sample.getKey().matches("_(Total_Connections|Current_Connections|Max_Threads)\\[.*")) {
+                expected.put(sample.getKey(), sample.getValue());
+            }
+        }
+        assertEquals(3, expected.size());
+        String config = "---\nusername: cn=Directory Manager\npassword: password\ntargetEntryDNs:\n- cn=Total,cn=Connections,cn=Monitor\n"
+            + "- cn=Current,cn=Connections,CN=MONITOR\n- cn=Missing,cn=Monitor\n- cn=Max,cn=Threads,cn=Monitor";
+        assertEquals(expected, sampleValues(new LdapCollector(config)));
+        assertEquals(expected, sampleValues(new LdapCollector(config + "\nparallelScrapeThreads: 4")));
+        assertEquals(expected, sampleValues(new LdapCollector(config + "\nbackend: unboundid")));
+        assertEquals(expected, sampleValues(new LdapCollector(config + "\nbackend: unboundid\nparallelScrapeThreads: 4")));
+        assertEquals(expected, sampleValues(new LdapCollector(config + "\nincrementalScrape: true")));
+    }
+
+    @Test
+    public void testTargetEntryDNsReconnectAfterServerClosedConnection() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\ntargetEntryDNs:\n- cn=Current,cn=Connections,cn=Monitor").register(registry);
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        server.shutDown(true);
+        server.startListening();
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+        assertEquals(45.0, registry.getSampleValue("_Current_Connections"), .001);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testTargetEntryDNsOutsideBaseDN() throws Exception {
+        new LdapCollector("---\ntargetEntryDNs:\n- cn=Total,cn=Connections,cn=Other");
+    }
+
+    @Test
+    public void testMaxSeriesPerFamily() throws Exception {
+        String yaml = "---\nusername: cn=Directory Manager\npassword: password\nextraAttributesToReturn: [monitorConnectionGet]\nrules:\n- pattern: `cn=Connection ([0-9]+),cn=Connections`\n  name: ldap_connection_get\n  labels:\n    id: $1\n- pattern: `.*`".replace('`','"');
+        int unlimited = connectionSeries(sampleValues(new LdapCollector(yaml)));
+        LdapCollector lc = new LdapCollector(yaml + "\nmaxSeriesPerFamily: 10");
+        double dropped = droppedSeries("ldap_connection_get");
+        Map<String, Double> values = sampleValues(lc);
+        assertEquals(10, connectionSeries(values));
+        assertEquals(unlimited - 10, droppedSeries("ldap_connection_get") - dropped, .001);
+        // The other families are not limited by this one.
+        assertNotNull(values.get("_Total_Connections[][]"));
+    }
+
+    private static int connectionSeries(Map<String, Double> values) {
+        int count = 0;
+        for (String series : values.keySet()) {
+            if (series.startsWith("ldap_connection_get")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testMaxSeries() throws Exception {
+        int unlimited = sampleValues(new LdapCollector("---\nusername: cn=Directory Manager\npassword: password")).size();
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nmaxSeries: 5");
+        double dropped = droppedSeries("");
+        assertEquals(5, sampleValues(lc).size());
+        assertEquals(unlimited - 5, droppedSeries("") - dropped, .001);
+        // The scrape itself is still reported.
+        assertEquals(1, lc.collectFamilies().size("ldap_scrape_error"));
+    }
+
+    @Test
+    public void testScrapeDeadlineReturnsPartialSamples() throws Exception {
+        int all = sampleValues(new LdapCollector("---\nusername: cn=Directory Manager\npassword: password")).size();
+        // 124 entries at 20 ms each take 2.5 seconds.
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nwhitelistEntryNames:\n- entryDN=*\nscrapeTimeoutSeconds: 1").register(registry);
+        long start = System.nanoTime();
+        int partial = sampleValues(lc).size();
+        assertTrue("Scrape took " + (System.nanoTime() - start) / 1000000L + " ms", System.nanoTime() - start < 2000000000L);
+        assertTrue(partial + " samples of " + all, partial > 0 && partial < all);
+        assertEquals(1.0, registry.getSampleValue("ldap_scrape_partial"), .001);
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_error"), .001);
+    }
+
+    @Test
+    public void testScrapeDeadlineFromRequestTimeout() throws Exception {
+        LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nwhitelistEntryNames:\n- entryDN=*\nbackend: unboundid");
+        long start = System.nanoTime();
+        // Half a second is left to write the response.
+        List<Collector.MetricFamilySamples> mfsList = lc.collectFamilies(1.5).toMetricFamilySamples();
+        assertTrue("Scrape took " + (System.nanoTime() - start) / 1000000L + " ms", System.nanoTime() - start < 2000000000L);
+        assertTrue(sampleValues(mfsList).size() > 0);
+        double partial = -1;
+        for (Collector.MetricFamilySamples mfs : mfsList) {
+            if (mfs.name.equals("ldap_scrape_partial")) {
+                partial = mfs.samples.get(0).value;
+            }
+        }
+        assertEquals(1.0, partial, .001);
+
+        // Without a timeout, the scrape reads everything.
+        new LdapCollector("---\nusername: cn=Directory Manager\npassword: password").register(registry);
+        assertEquals(0.0, registry.getSampleValue("ldap_scrape_partial"), .001);
+    }
+
+    @Test
+    public void testScrapeDeadline() throws Exception {
+        assertEquals(9500, Deadline.forScrape(0, 10).timeoutMillis());
+        assertEquals(5000, Deadline.forScrape(5, 10).timeoutMillis());
+        assertEquals(5000, Deadline.forScrape(5, 0).timeoutMillis());
+        // Short request timeouts keep half of their time.
+        assertEquals(300, Deadline.forScrape(0, 0.6).timeoutMillis());
+        assertTrue(!Deadline.forScrape(0, 0).isSet());
+        assertEquals(Long.MAX_VALUE, Deadline.NONE.remainingMillis());
+        Deadline.NONE.check();
+    }
+
+    private static double droppedSeries(String family) {
+        Double value = CollectorRegistry.defaultRegistry.getSampleValue("ldapexporter_series_dropped_total", new String[]{"family"}, new String[]{family});
+        return value == null ? 0 : value;
+    }
+
+    @Test
+    public void testCachedSeriesUseNewValues() throws Exception {
+        LdapCollector lc = new LdapCollector(
+              "\n---\nusername: cn=Directory Manager\npassword: password\nrules:\n- pattern: `cn=(Current),cn=(Connections)`\n  name: ldap_$2\n  help: $1 $2\n  labels:\n    state: $1\n  valueFactor: 2".replace('`','"')).register(registry);
+        assertEquals(90.0, registry.getSampleValue("ldap_Connections", new String[]{"state"}, new String[]{"Current"}), .001);
+        server.modify("cn=Current,cn=Connections,cn=Monitor", new Modification(ModificationType.REPLACE, "monitorCounter", "50"));
+        try {
+            assertEquals(100.0, registry.getSampleValue("ldap_Connections", new String[]{"state"}, new String[]{"Current"}), .001);
+        } finally {
+            server.modify("cn=Current,cn=Connections,cn=Monitor", new Modification(ModificationType.REPLACE, "monitorCounter", "45"));
+        }
+    }
+
+    @Test
+    public void testSeriesCacheDisabled() throws Exception {
+        LdapCollector cached = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password");
+        LdapCollector uncached = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nseriesCacheSize: 0");
+        Map<String, Double> expected = sampleValues(cached);
+        assertEquals(expected, sampleValues(cached));
+        assertEquals(expected, sampleValues(uncached));
+    }
+
+    private static String regexSafeName(String s) {
+        return s.replaceAll(",*cn=", "_").replaceAll("[^a-zA-Z0-9:_]", "_").replaceAll("__+", "_");
+    }
+
+    @Test
+    public void testSafeNameMatchesRegexVersion() throws Exception {
+        String[] names = {"", "_", "__", "abc", "cn=Total,cn=Connections", ",,,cn=Total,,cn=", "cn", "cn=", ",cn",
+            "c,cn=", "a,,b", "x__y", "_cn=_", "cn=Bind,cn=Operations_monitorOpInitiated", "Max File Descriptors",
+            "\u00e9t\u00e9", "a:b", "ccn=", "cn=cn=", "\ud83d\ude00x"};
+        for (String name : names) {
+            assertEquals(name, regexSafeName(name), LdapCollector.safeName(name));
+        }
+        java.util.Random random = new java.util.Random(42);
+        String alphabet = "cn=,_ aZ9:-.";
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String name = sb.toString();
+            assertEquals(name, regexSafeName(name), LdapCollector.safeName(name));
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testHotPathAllocation() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        int iterations = 10000;
+        // The least of a few rounds, a round may allocate while the JIT compiles.
+        int rounds = 5;
+        String safe = "ldap_operations_completed_total";
+        LdapCollector.safeName(safe);
+        long safeNameBytes = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                LdapCollector.safeName(safe);
+            }
+            safeNameBytes = Math.min(safeNameBytes, allocatedBytes() - before);
+        }
+        assertTrue("safeName allocated " + safeNameBytes + " bytes", safeNameBytes < 1024);
+
+        LdapCollector lc = new LdapCollector(
+            "\n---\nrules:\n- pattern: `cn=(.+),cn=Operations_(.+)`\n  name: ldap_operations_$2\n  labels:\n    operation: $1\n- pattern: `.*`".replace('`','"'));
+        Double value = 1.0;
+        // The test logging configuration enables FINE, which is not the point here.
+        Logger collectorLogger = Logger.getLogger(LdapCollector.class.getName());
+        Level level = collectorLogger.getLevel();
+        collectorLogger.setLevel(Level.INFO);
+        long perEntry = Long.MAX_VALUE;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                LdapCollector.Receiver receiver = lc.newReceiver();
+                receiver.recordLdapEntry("cn=Bind,cn=Operations_monitorOpCompleted", value, "monitorOpCompleted", "cn=Bind,cn=Operations_monitorOpCompleted");
+                receiver.recordLdapEntry("cn=Total,cn=Connections", value, "monitorCounter", "cn=Total,cn=Connections_monitorCounter");
+                long before = allocatedBytes();
+                for (int i = 0; i < iterations; i++) {
+                    receiver.recordLdapEntry("cn=Bind,cn=Operations_monitorOpCompleted", value, "monitorOpCompleted", "cn=Bind,cn=Operations_monitorOpCompleted");
+                    receiver.recordLdapEntry("cn=Total,cn=Connections", value, "monitorCounter", "cn=Total,cn=Connections_monitorCounter");
+                }
+                perEntry = Math.min(perEntry, (allocatedBytes() - before) / (2 * iterations));
+            }
+        } finally {
+            collectorLogger.setLevel(level);
+        }
+        // What is left is the growth of the arrays of the family.
+        assertTrue("recordLdapEntry allocated " + perEntry + " bytes per entry", perEntry < 50);
+    }
+
     @Test(expected=IllegalStateException.class)
     public void testDelayedStartNotReady() throws Exception {
         LdapCollector lc = new LdapCollector("---\nusername: cn=Directory Manager\npassword: password\nstartDelaySeconds: 1").register(registry);
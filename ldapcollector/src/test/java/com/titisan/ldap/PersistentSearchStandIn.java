@@ -0,0 +1,173 @@
+package com.titisan.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedAddResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedDeleteResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ReadOnlySearchRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
+
+/**
+ * Persistent Search for the in-memory directory server, which does not support it.
+ *
+ * The initial results are left to the server. The search is then held open and
+ * the entries added, modified or deleted through LDAP are sent on it, with an
+ * Entry Change Notification control when asked for.
+ */
+class PersistentSearchStandIn extends InMemoryOperationInterceptor {
+    private static class Change {
+        final PersistentSearchChangeType type;
+        final String dn;
+        final Entry entry;
+
+        Change(PersistentSearchChangeType type, String dn, Entry entry) {
+            this.type = type;
+            this.dn = dn;
+            this.entry = entry;
+        }
+    }
+
+    final AtomicInteger searches = new AtomicInteger();
+    private final Map<String, PersistentSearchRequestControl> pending = new ConcurrentHashMap<String, PersistentSearchRequestControl>();
+    private final List<BlockingQueue<Change>> subscribers = new CopyOnWriteArrayList<BlockingQueue<Change>>();
+    private volatile InMemoryDirectoryServer server;
+    private volatile boolean closed = false;
+
+    void setServer(InMemoryDirectoryServer server) {
+        this.server = server;
+    }
+
+    /**
+     * End the searches still held open, for the server to shut down.
+     */
+    void close() {
+        closed = true;
+    }
+
+    private static String key(long connectionId, int messageId) {
+        return connectionId + ":" + messageId;
+    }
+
+    @Override
+    public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+        ReadOnlySearchRequest search = request.getRequest();
+        Control control = search.getControl(PersistentSearchRequestControl.PERSISTENT_SEARCH_REQUEST_OID);
+        if (control == null) {
+            return;
+        }
+        searches.incrementAndGet();
+        pending.put(key(request.getConnectionID(), request.getMessageID()), new PersistentSearchRequestControl(control));
+        // The server would reject the unknown critical control.
+        SearchRequest withoutControl = search.duplicate();
+        withoutControl.removeControl(control);
+        request.setRequest(withoutControl);
+    }
+
+    @Override
+    public void processSearchResult(InMemoryInterceptedSearchResult result) {
+        PersistentSearchRequestControl control = pending.remove(key(result.getConnectionID(), result.getMessageID()));
+        if (control == null || result.getResult().getResultCode() != ResultCode.SUCCESS) {
+            return;
+        }
+        BlockingQueue<Change> queue = new LinkedBlockingQueue<Change>();
+        subscribers.add(queue);
+        ReadOnlySearchRequest search = result.getRequest();
+        try {
+            // Never send the search result, the search goes on until the client leaves.
+            while (!closed) {
+                Change change = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (change == null || !control.getChangeTypes().contains(change.type)) {
+                    continue;
+                }
+                DN dn = new DN(change.dn);
+                if (!dn.isDescendantOf(search.getBaseDN(), true)
+                    || (change.entry != null && !search.getFilter().matchesEntry(change.entry))) {
+                    continue;
+                }
+                Entry entry = change.entry == null ? new Entry(change.dn) : requestedAttributes(change.entry, search.getAttributeList());
+                Control[] controls = control.returnECs()
+                    ? new Control[] { new EntryChangeNotificationControl(change.type, null, -1L) }
+                    : new Control[0];
+                result.sendSearchEntry(new SearchResultEntry(entry, controls));
+            }
+        } catch (LDAPException e) {
+            // The client is gone.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscribers.remove(queue);
+        }
+    }
+
+    private static Entry requestedAttributes(Entry entry, List<String> attributes) {
+        if (attributes.isEmpty() || attributes.contains("*")) {
+            return entry;
+        }
+        Entry requested = new Entry(entry.getDN());
+        for (String name : attributes) {
+            Attribute attribute = entry.getAttribute(name);
+            if (attribute != null) {
+                requested.addAttribute(attribute);
+            }
+        }
+        return requested;
+    }
+
+    @Override
+    public void processAddResult(InMemoryInterceptedAddResult result) {
+        if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+            publish(PersistentSearchChangeType.ADD, result.getRequest().getDN());
+        }
+    }
+
+    @Override
+    public void processModifyResult(InMemoryInterceptedModifyResult result) {
+        if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+            publish(PersistentSearchChangeType.MODIFY, result.getRequest().getDN());
+        }
+    }
+
+    @Override
+    public void processDeleteResult(InMemoryInterceptedDeleteResult result) {
+        if (result.getResult().getResultCode() == ResultCode.SUCCESS) {
+            publish(PersistentSearchChangeType.DELETE, result.getRequest().getDN());
+        }
+    }
+
+    private void publish(PersistentSearchChangeType type, String dn) {
+        Entry entry = null;
+        if (type != PersistentSearchChangeType.DELETE) {
+            try {
+                entry = server.getEntry(dn);
+            } catch (LDAPException e) {
+                return;
+            }
+        }
+        for (BlockingQueue<Change> queue : new ArrayList<BlockingQueue<Change>>(subscribers)) {
+            queue.add(new Change(type, dn, entry));
+        }
+    }
+}
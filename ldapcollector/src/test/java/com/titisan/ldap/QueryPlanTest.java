@@ -0,0 +1,66 @@
+package com.titisan.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Unit test for QueryPlan.
+ */
+public class QueryPlanTest {
+    private static final List<String> NONE = Collections.<String>emptyList();
+    private static final String PRESENCE = "(|(monitorCounter=*)(monitorOpInitiated=*)(monitorOpCompleted=*)(monitoredInfo=*))";
+
+    private static String filter(String... patterns) {
+        Pattern[] compiled = new Pattern[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            compiled[i] = patterns[i] == null ? null : Pattern.compile(patterns[i]);
+        }
+        return new QueryPlan(Arrays.asList(compiled), NONE, NONE, NONE).getFilter();
+    }
+
+    @Test
+    public void testRdnFilter() {
+        assertEquals("(cn=Total)", QueryPlan.rdnFilter("cn=Total,cn=Connections"));
+        assertEquals("(cn=Total*)", QueryPlan.rdnFilter("cn=Total"));
+        assertEquals("(cn=Max File*)", QueryPlan.rdnFilter("cn=Max File"));
+        assertEquals("(cn=Operations*)", QueryPlan.rdnFilter("cn=Operations_monitorOp"));
+        assertEquals("(cn=a)", QueryPlan.rdnFilter("cn=a+sn=b,cn=c"));
+        assertEquals("(cn=\\2a\\28x\\29)", QueryPlan.rdnFilter("cn=*(x),"));
+        assertNull(QueryPlan.rdnFilter(""));
+        assertNull(QueryPlan.rdnFilter("cn="));
+        assertNull(QueryPlan.rdnFilter("cn"));
+        assertNull(QueryPlan.rdnFilter("_monitoredInfo"));
+        assertNull(QueryPlan.rdnFilter("c n=Total"));
+        assertNull(QueryPlan.rdnFilter("cn=a\\,b"));
+    }
+
+    @Test
+    public void testRulesRestrictTheFilter() {
+        assertEquals("(&" + PRESENCE + "(cn=Total))", filter("cn=Total,cn=Connections"));
+        assertEquals("(&" + PRESENCE + "(|(cn=Total)(cn=Max*)))", filter("cn=Total,cn=Connections", "cn=Max.*", "cn=Total,cn=(.+)"));
+    }
+
+    @Test
+    public void testAnyRuleWithoutRdnKeepsAllEntries() {
+        assertEquals(PRESENCE, filter("cn=Total,cn=Connections", "cn=(.+),cn=Connections"));
+        assertEquals(PRESENCE, filter("cn=Total,cn=Connections", null));
+        assertEquals(PRESENCE, filter("(?i)cn=Total,cn=Connections"));
+    }
+
+    @Test
+    public void testWhiteAndBlackLists() {
+        QueryPlan plan = new QueryPlan(Collections.<Pattern>singletonList(null), Arrays.asList("cn=*"), Arrays.asList("cn=Total"),
+            Arrays.asList("monitorCounter", "createTimestamp"));
+        assertEquals("(&(&(|(cn=*) )(&(!(cn=Total))))(|(monitorCounter=*)(monitorOpInitiated=*)(monitorOpCompleted=*)(monitoredInfo=*)(createTimestamp=*)))",
+            plan.getFilter());
+        assertEquals(Arrays.asList("monitorCounter", "monitorOpInitiated", "monitorOpCompleted", "monitoredInfo", "monitorCounter", "createTimestamp"),
+            plan.getAttributes());
+    }
+}
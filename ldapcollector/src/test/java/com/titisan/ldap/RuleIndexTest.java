@@ -0,0 +1,63 @@
+package com.titisan.ldap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Unit test for RuleIndex.
+ */
+public class RuleIndexTest {
+
+    private static String prefix(String regex) {
+        return RuleIndex.literalPrefix(Pattern.compile(regex));
+    }
+
+    @Test
+    public void testLiteralPrefix() {
+        assertEquals("cn=Total,cn=Connections", prefix("cn=Total,cn=Connections"));
+        assertEquals("cn=", prefix("cn=(Read|Write),cn=Waiters"));
+        assertEquals("cn=", prefix("cn=(.+),cn=Operations_monitorOpCompleted"));
+        assertEquals("cn=Max File Descriptors", prefix("cn=Max File Descriptors.*"));
+        assertEquals("", prefix(".*Total"));
+        assertEquals("", prefix("^cn=Total"));
+        assertEquals("", prefix("cn=Read|cn=Write"));
+        assertEquals("", prefix("(?i)cn=Total"));
+        assertEquals("", RuleIndex.literalPrefix(Pattern.compile("cn=Total", Pattern.CASE_INSENSITIVE)));
+        assertEquals("c", prefix("cn?=Total"));
+        assertEquals("c", prefix("cn*=Total"));
+        assertEquals("c", prefix("cn{2}=Total"));
+        assertEquals("cn", prefix("cn+=Total"));
+        assertEquals("a.b", prefix("a\\.b"));
+        assertEquals("a", prefix("a\\.?b"));
+        assertEquals("a", prefix("a\\d"));
+        assertEquals("", prefix("\\Qcn=\\E"));
+    }
+
+    @Test
+    public void testCandidatesKeepRuleOrder() {
+        RuleIndex index = new RuleIndex(Arrays.asList(
+            Pattern.compile("cn=Total,cn=Connections"),
+            Pattern.compile(".*"),
+            Pattern.compile("cn=Read,cn=Waiters"),
+            null,
+            Pattern.compile("cn=(.+),cn=Connections")));
+        BitSet candidates = new BitSet();
+
+        index.candidates("cn=Total,cn=Connections", candidates);
+        assertEquals("{0, 1, 3, 4}", candidates.toString());
+
+        index.candidates("cn=Read,cn=Waiters", candidates);
+        assertEquals("{1, 2, 3, 4}", candidates.toString());
+
+        index.candidates("cn=Monitor", candidates);
+        assertEquals("{1, 3, 4}", candidates.toString());
+
+        index.candidates("_Current", candidates);
+        assertEquals("{1, 3}", candidates.toString());
+    }
+}